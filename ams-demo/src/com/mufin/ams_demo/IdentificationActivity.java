@@ -3,6 +3,7 @@
  */
 package com.mufin.ams_demo;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
@@ -17,9 +18,13 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 
+import com.mufin.android.common.CachingSearchWorker;
+import com.mufin.android.common.LocalIndex;
+import com.mufin.android.common.SilenceGate;
 import com.mufin.ams_content.MetadataServiceClient;
 import com.mufin.ams_content.ResultMetadata;
 import com.mufin.ams_demo.components.CurrentResult;
+import com.mufin.ams_demo.components.MetadataCache;
 import com.mufin.ams_demo.components.RecordingIdentificationController;
 import com.mufin.ams_demo.components.RecordingIdentificationController.EarsType;
 import com.mufin.ams_demo.components.RecordingIdentificationController.RecordingMode;
@@ -33,6 +38,8 @@ public class IdentificationActivity extends Activity {
 	
 	/** the metadata webservice client class */
 	private MetadataServiceClient client;
+	/** the cache of the metadata webservice, null if there is no webservice */
+	private MetadataCache metadataCache;
 	/** result display helper class */
 	private CurrentResult currentResult;
 	
@@ -49,6 +56,30 @@ public class IdentificationActivity extends Activity {
 						buildControllerSettings());
 		
 		controller.setControllerEventsHandler(new ControllerEvents());
+		// feed the extractor from the recorder thread, the gui doesn't use the recorder updates
+		controller.setPipelineMode(RecordingIdentificationController.PipelineMode.direct);
+		controller.setRecorderUpdates(false);
+		// convert the native rate of the microphone by our own resampler
+		controller.setNativeCapture(true);
+		// connect the search session, while the first query is recorded
+		controller.setSpeculativeSession(true);
+		// stop the scan with the first confident result, not after the metadata request
+		controller.setEarlyTermination(Settings.CONFIDENCE_THRESHOLD);
+		// a confident result stops growing the progressive queries
+		controller.setConfidenceThreshold(EarsType.ams, Settings.CONFIDENCE_THRESHOLD);
+		// continuous mode repeats queries of the same audio
+		controller.setResultCache(new CachingSearchWorker.ResultCache());
+		// search the catalog on the device and the server in parallel, the first confident result wins
+		if (!Settings.LOCAL_INDEX_FILE.equals(""))
+		{
+			try {
+				controller.setLocalIndex(LocalIndex.open(new File(getFilesDir(), Settings.LOCAL_INDEX_FILE)));
+				controller.setFanOut(true);
+				controller.setConfidenceThreshold(EarsType.local, Settings.LOCAL_CONFIDENCE_THRESHOLD);
+			} catch (IOException e) {
+				Log.w( getClass().getName(), "local index not available: " + e.getMessage() );
+			}
+		}
 		
         setContentView(R.layout.identification);
         
@@ -59,10 +90,13 @@ public class IdentificationActivity extends Activity {
 
         // init webservice client if url is provided
         client = null;
+        metadataCache = null;
         if (!Settings.METADATA_URL.equals(""))
         {
 	        client = new MetadataServiceClient();
 	        client.setBaseURL(Settings.METADATA_URL);
+	        // continuous mode identifies the same track every few seconds
+	        metadataCache = new MetadataCache(this, client);
         }
 
         // hide result screen on start
@@ -158,8 +192,12 @@ public class IdentificationActivity extends Activity {
 		// re-set all controller data, if sth. changed (not in this demo app, but if settings dialog exists, do it here)
 		controller.setRecordingMode( getRecordingMode() );
 		controller.setQueryDuration( getQueryDuration() );
+		controller.setProgressiveQuery( Settings.PROGRESSIVE_QUERY_DURATION, Settings.PROGRESSIVE_QUERY_STEP );
 		controller.setRecordingDuration( getRecordingDuration() );
 		controller.setSettings( buildControllerSettings() );
+		// skip quiet audio, while listening continuously
+		controller.setSilenceGate( getRecordingMode() == RecordingMode.continuous,
+									SilenceGate.DEFAULT_OPEN_LEVEL, SilenceGate.DEFAULT_CLOSE_LEVEL, SilenceGate.DEFAULT_HOLD_DURATION );
 		
 		setRecording( true );
 
@@ -175,6 +213,9 @@ public class IdentificationActivity extends Activity {
 		
 		controller.stopRecorder();
 		
+		if (metadataCache != null)
+			metadataCache.logStatistics();
+		
 		setRecording( false );
 		
 		// update screen
@@ -296,7 +337,9 @@ public class IdentificationActivity extends Activity {
 			
 			if(!controller.isRecording()) return; // ignore last result, if recording was stopped before
 			
-			if(earsType != EarsType.ams) return; // ignore result, if it is unregistered type (should never happen in AMS only app)
+			if(earsType != EarsType.ams && earsType != EarsType.local) return; // ignore result, if it is unregistered type
+			
+			final int confidenceThreshold = earsType == EarsType.local ? Settings.LOCAL_CONFIDENCE_THRESHOLD : Settings.CONFIDENCE_THRESHOLD;
 			
 			Log.d( getClass().getName(), "start metadata thread" );
 			
@@ -313,16 +356,16 @@ public class IdentificationActivity extends Activity {
 					IdentifyResult result = null;
 					ResultMetadata resultMetadata = null;
 					try {
-						if(identifyResult!=null && identifyResult.size()>0 && identifyResult.get(0).getConfidence() >= Settings.CONFIDENCE_THRESHOLD) {
+						if(identifyResult!=null && identifyResult.size()>0 && identifyResult.get(0).getConfidence() >= confidenceThreshold) {
 							
 							result = identifyResult.get(0);
 							
 							Log.d( getClass().getName(), " result id: "+result.getId()+" " + " timestamp: " + result.getTimestamp() );
 
-							// try to get metadata from webservice
-							if (client != null)
+							// try to get metadata from cache or webservice
+							if (metadataCache != null)
 							{
-								resultMetadata = client.getMetadata(IdentificationActivity.this, result.getId());
+								resultMetadata = metadataCache.getMetadata(result.getId());
 							}
 						}
 					} catch (Exception e) {
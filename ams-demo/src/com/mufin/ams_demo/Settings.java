@@ -23,13 +23,18 @@ public class Settings {
 	public static final long  NETWORK_TIMEOUT = 10000; // network timeout in milliseconds
 
 	public static final String METADATA_URL = ""; // optional metadata webservice base url (url with protocol)
+	public static final String LOCAL_INDEX_FILE = ""; // optional fingerprint catalog in the files directory, searched on the device
 
 	// identification mode true = continuous identification, false = single mode
 	public static final boolean CONTINUOUS_IDENTIFY = true;
 	// audio recording duration in milliseconds
 	public static final int QUERY_DURATION = 1920; // ms
+	// first query of a scan, extended by the step up to QUERY_DURATION, 0 = fixed query duration
+	public static final int PROGRESSIVE_QUERY_DURATION = 960; // ms
+	public static final int PROGRESSIVE_QUERY_STEP = 480; // ms
 	public static final int RECORDING_DURATION = 10000; // ms
 	public static final int CONFIDENCE_THRESHOLD = 40;
+	public static final int LOCAL_CONFIDENCE_THRESHOLD = 30; // confidence of a match in the local catalog
 
 	// enable overlap for faster search results
 	public static final boolean RECORDING_OVERLAP = true;
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) mufin GmbH. All rights reserved.
+ */
+package com.mufin.ams_demo.components;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * decodes cover images in the background, downsampled to the size of the {@link ImageView}.<br/>
+ * The decoded bitmaps are kept in a LRU cache bounded by their size in bytes, so recently shown covers
+ * are displayed without decoding. The bitmaps aren't recycled, they may still be displayed, the garbage
+ * collector frees them, when they are neither cached nor displayed.<br/>
+ * A view shows the bitmap of its last {@link #load(Activity, ImageView, File)} only, decodes of previous
+ * covers are dropped.
+ */
+public class CoverLoader {
+
+	/** the fraction of the maximum heap used by the cache */
+	private static final int MEMORY_FRACTION = 8;
+
+	private final long maxBytes;
+	/** the bitmaps by key in access order, guarded by this */
+	private final LinkedHashMap<String, Bitmap> bitmaps = new LinkedHashMap<String, Bitmap>(16, 0.75f, true);
+	/** the size of the cached bitmaps, guarded by this */
+	private long bytes = 0;
+	/** a single decoder thread, which ends when idle */
+	private final ThreadPoolExecutor decoder = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/**
+	 * ctor, the cache uses an eighth of the maximum heap
+	 */
+	public CoverLoader() {
+		this(Runtime.getRuntime().maxMemory() / MEMORY_FRACTION);
+	}
+
+	/**
+	 * ctor
+	 * @param maxBytes the maximum size of the cached bitmaps in bytes
+	 */
+	public CoverLoader(long maxBytes) {
+		super();
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * show the cover in the view, must be called on the ui thread<br/>
+	 * a cached cover is shown immediately, otherwise the view is cleared until the cover is decoded
+	 * @param context the activity of the view
+	 * @param view the view
+	 * @param cover the image file, or null to clear the view
+	 */
+	public void load(final Activity context, final ImageView view, File cover) {
+		if(cover == null) {
+			view.setTag(null);
+			view.setImageBitmap(null);
+			return;
+		}
+
+		final String path = cover.getAbsolutePath();
+		final int targetWidth = getTargetWidth(view);
+		final int targetHeight = getTargetHeight(view);
+		final String key = path + "@" + targetWidth + "x" + targetHeight;
+
+		// the view shows the last requested cover only
+		view.setTag(key);
+		Bitmap bitmap = get(key);
+		view.setImageBitmap(bitmap);
+		if(bitmap != null)
+			return;
+
+		decoder.execute(new Runnable() {
+			@Override
+			public void run() {
+				// the view may show another cover meanwhile, the bitmap is cached anyway
+				final Bitmap decoded = decode(path, targetWidth, targetHeight);
+				if(decoded == null)
+					return;
+				put(key, decoded);
+
+				context.runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						if(key.equals(view.getTag()))
+							view.setImageBitmap(decoded);
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * remove all bitmaps from the cache
+	 */
+	public synchronized void clear() {
+		bitmaps.clear();
+		bytes = 0;
+	}
+
+	private synchronized Bitmap get(String key) {
+		return bitmaps.get(key);
+	}
+
+	private synchronized void put(String key, Bitmap bitmap) {
+		Bitmap replaced = bitmaps.put(key, bitmap);
+		if(replaced != null)
+			bytes -= sizeOf(replaced);
+		bytes += sizeOf(bitmap);
+
+		// the least recently used first, keep the new bitmap, even if it is too big
+		while(bytes > maxBytes && bitmaps.size() > 1) {
+			Map.Entry<String, Bitmap> eldest = bitmaps.entrySet().iterator().next();
+			bytes -= sizeOf(eldest.getValue());
+			bitmaps.remove(eldest.getKey());
+		}
+	}
+
+	/**
+	 * decode the image with the largest power of two sample size, which keeps it at least as large as the target
+	 */
+	private static Bitmap decode(String path, int targetWidth, int targetHeight) {
+		long start = System.currentTimeMillis();
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(path, options);
+		if(options.outWidth <= 0 || options.outHeight <= 0) {
+			Log.w( CoverLoader.class.getName(), "cannot decode cover " + path );
+			return null;
+		}
+
+		int sampleSize = 1;
+		while(options.outWidth / (sampleSize * 2) >= targetWidth && options.outHeight / (sampleSize * 2) >= targetHeight)
+			sampleSize *= 2;
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = sampleSize;
+		Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+
+		Log.d( CoverLoader.class.getName(), "decoded cover " + options.outWidth + "x" + options.outHeight +
+											" (sample size " + sampleSize + ") in " + (System.currentTimeMillis() - start) + "ms" );
+		return bitmap;
+	}
+
+	private static long sizeOf(Bitmap bitmap) {
+		return (long)bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * @return the width of the view, or of the screen, if the view isn't laid out yet
+	 */
+	private static int getTargetWidth(ImageView view) {
+		if(view.getWidth() > 0)
+			return view.getWidth();
+		DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+		return metrics.widthPixels;
+	}
+
+	private static int getTargetHeight(ImageView view) {
+		if(view.getHeight() > 0)
+			return view.getHeight();
+		DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+		return metrics.heightPixels;
+	}
+}
@@ -9,10 +9,6 @@ import java.text.SimpleDateFormat;
 import java.util.TimeZone;
 
 import android.app.Activity;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.drawable.BitmapDrawable;
-import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -38,6 +34,8 @@ public class CurrentResult {
 
 	private IdentifyResult result;
 	private ResultMetadata resultMetadata;
+	/** the decoder and cache of the cover images */
+	private final CoverLoader coverLoader = new CoverLoader();
 	
 	/**
 	 * the way the result was determined<br/>
@@ -142,22 +140,13 @@ public class CurrentResult {
 				// result cover image
 				ImageView coverImageView = (ImageView) container.findViewById( R.id.current_channel_cover );
 				
-				// prevent OutOfMemoryError by deleting the bitmap resource and add again later if needed
-				// bitmap recycle is the recommended way to clean memory for drawables
-				Drawable toRecycle = coverImageView.getDrawable();
-				if (toRecycle != null) {
-				    Bitmap b = ((BitmapDrawable)toRecycle).getBitmap();
-				    if(b != null) b.recycle();
-				}
-				
-				coverImageView.setImageURI(null);
-				
 				// check for type of result to show the right messages or the result
 				switch (cause) {
 				case searching:
 					title.setText( context.getText( R.string.searching ) );
 					time.setText("");
 
+					coverLoader.load(context, coverImageView, null);
 					coverImageView.setVisibility(View.INVISIBLE);
 					break;
 					
@@ -184,12 +173,9 @@ public class CurrentResult {
 										
 					time.setText(timeFormat.format(result.getTimestamp()));
 					
+					// decoded in the background, the cached covers of recent results are shown immediately
 					File cover = (resultMetadata!=null ? resultMetadata.getCover() : null);
-					Bitmap bmCover;
-					if( cover != null ) {
-						bmCover = BitmapFactory.decodeFile(cover.getAbsolutePath());
-						coverImageView.setImageBitmap(bmCover);
-					}
+					coverLoader.load(context, coverImageView, cover);
 					coverImageView.setVisibility(View.VISIBLE);
 					
 					break;
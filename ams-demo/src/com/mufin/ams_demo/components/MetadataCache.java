@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) mufin GmbH. All rights reserved.
+ */
+package com.mufin.ams_demo.components;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.mufin.ams_content.MetadataServiceClient;
+import com.mufin.ams_content.ResultMetadata;
+import com.mufin.ams_content.Tag;
+
+/**
+ * two tier cache of the metadata webservice, keyed by the result id.<br/>
+ * The first tier is a bounded in-memory LRU, the second one a size-capped directory in the cache dir of the app,
+ * which survives restarts. The least recently used files are deleted, if the directory exceeds its capacity.<br/>
+ * Concurrent lookups of the same id share one request. Failed requests aren't cached.
+ */
+public class MetadataCache {
+
+	/** the default maximum count of metadata in memory */
+	public static final int DEFAULT_MEMORY_CAPACITY = 32;
+	/** the default maximum size of the cache directory */
+	public static final long DEFAULT_DISK_CAPACITY = 512 * 1024; // bytes
+
+	private static final String DIRECTORY = "metadata";
+	private static final int FORMAT_VERSION = 1;
+
+	private final Context context;
+	private final MetadataServiceClient client;
+	private final File directory;
+	private final long diskCapacity;
+	/** the metadata by id in access order, guarded by this */
+	private final LinkedHashMap<String, ResultMetadata> memory;
+	/** the running lookups by id, guarded by this */
+	private final HashMap<String, FutureTask<ResultMetadata>> lookups = new HashMap<String, FutureTask<ResultMetadata>>();
+
+	private int memoryHitCount = 0;
+	private int diskHitCount = 0;
+	private int missCount = 0;
+	private int sharedCount = 0;
+
+	/**
+	 * same as MetadataCache(context, client, DEFAULT_MEMORY_CAPACITY, DEFAULT_DISK_CAPACITY)
+	 */
+	public MetadataCache(Context context, MetadataServiceClient client) {
+		this(context, client, DEFAULT_MEMORY_CAPACITY, DEFAULT_DISK_CAPACITY);
+	}
+
+	/**
+	 * ctor
+	 * @param context the context of the cache dir and the requests
+	 * @param client the webservice client
+	 * @param memoryCapacity the maximum count of metadata in memory
+	 * @param diskCapacity the maximum size of the cache directory in bytes, 0 to disable the disk tier
+	 */
+	public MetadataCache(Context context, MetadataServiceClient client, final int memoryCapacity, long diskCapacity) {
+		super();
+		if(memoryCapacity <= 0)
+			throw new IllegalArgumentException("invalid capacity " + memoryCapacity);
+
+		this.context = context.getApplicationContext();
+		this.client = client;
+		this.directory = new File(context.getCacheDir(), DIRECTORY);
+		this.diskCapacity = diskCapacity;
+		this.memory = new LinkedHashMap<String, ResultMetadata>(memoryCapacity * 4 / 3 + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, ResultMetadata> eldest) {
+				return size() > memoryCapacity;
+			}
+		};
+	}
+
+	/**
+	 * get the metadata from memory, disk or the webservice, blocks during requests
+	 * @param id the result id
+	 * @return the metadata, or null if the request failed
+	 */
+	public ResultMetadata getMetadata(final String id) {
+		FutureTask<ResultMetadata> lookup;
+		boolean owner = false;
+		synchronized(this) {
+			ResultMetadata metadata = memory.get(id);
+			if(metadata != null) {
+				memoryHitCount++;
+				return metadata;
+			}
+
+			lookup = lookups.get(id);
+			if(lookup == null) {
+				lookup = new FutureTask<ResultMetadata>(new Callable<ResultMetadata>() {
+					@Override
+					public ResultMetadata call() {
+						return load(id);
+					}
+				});
+				lookups.put(id, lookup);
+				owner = true;
+			} else {
+				sharedCount++;
+			}
+		}
+
+		if(owner) {
+			lookup.run();
+			synchronized(this) {
+				lookups.remove(id);
+			}
+		}
+
+		try {
+			return lookup.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			Log.e( getClass().getName(), "metadata lookup failed: " + id, e.getCause() );
+			return null;
+		}
+	}
+
+	/**
+	 * load the metadata from disk or the webservice, and add it to the memory tier
+	 */
+	private ResultMetadata load(String id) {
+		ResultMetadata metadata = read(id);
+		if(metadata != null) {
+			synchronized(this) {
+				diskHitCount++;
+			}
+		} else {
+			synchronized(this) {
+				missCount++;
+			}
+			metadata = client.getMetadata(context, id);
+			if(metadata == null)
+				return null;
+			write(id, metadata);
+		}
+
+		synchronized(this) {
+			memory.put(id, metadata);
+		}
+		return metadata;
+	}
+
+	/**
+	 * @return the metadata of the disk tier, or null if not cached or the cover was deleted
+	 */
+	private ResultMetadata read(String id) {
+		File file = getFile(id);
+		if(diskCapacity <= 0 || !file.exists())
+			return null;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				// the file name is the hash of the id
+				if(in.readInt() != FORMAT_VERSION || !id.equals(in.readUTF()))
+					return null;
+
+				String title = readString(in);
+				String artist = readString(in);
+				String coverPath = readString(in);
+				int tagCount = in.readInt();
+				List<Tag> tags = new ArrayList<Tag>(tagCount);
+				for(int i = 0; i < tagCount; i++)
+					tags.add(new CachedTag(readString(in), readString(in)));
+
+				// the system may clean the cache dir, the cover is downloaded again
+				File cover = coverPath != null ? new File(coverPath) : null;
+				if(cover != null && !cover.exists())
+					return null;
+
+				// least recently used order of the files
+				file.setLastModified(System.currentTimeMillis());
+				return new CachedMetadata(id, title, artist, tags, cover);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w( getClass().getName(), "cannot read cached metadata " + file + ": " + e.getMessage() );
+			file.delete();
+			return null;
+		}
+	}
+
+	private void write(String id, ResultMetadata metadata) {
+		if(diskCapacity <= 0)
+			return;
+
+		File file = getFile(id);
+		File temp = new File(directory, file.getName() + ".tmp");
+		try {
+			directory.mkdirs();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				out.writeInt(FORMAT_VERSION);
+				out.writeUTF(id);
+				writeString(out, metadata.getTitle());
+				writeString(out, metadata.getArtist());
+				writeString(out, metadata.getCover() != null ? metadata.getCover().getAbsolutePath() : null);
+				List<Tag> tags = metadata.getTags();
+				out.writeInt(tags != null ? tags.size() : 0);
+				if(tags != null) {
+					for(Tag tag : tags) {
+						writeString(out, tag.getName());
+						writeString(out, tag.getValue());
+					}
+				}
+			} finally {
+				out.close();
+			}
+
+			// readers never see a partial file
+			if(!temp.renameTo(file))
+				throw new IOException("cannot rename " + temp);
+		} catch (IOException e) {
+			Log.w( getClass().getName(), "cannot write cached metadata " + file + ": " + e.getMessage() );
+			temp.delete();
+			return;
+		}
+
+		trimDisk();
+	}
+
+	/**
+	 * delete the least recently used files, until the directory fits the capacity
+	 */
+	private void trimDisk() {
+		// the memory tier isn't blocked by the disk
+		synchronized(directory) {
+			trimFiles();
+		}
+	}
+
+	private void trimFiles() {
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+
+		long size = 0;
+		for(File file : files)
+			size += file.length();
+		if(size <= diskCapacity)
+			return;
+
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+			}
+		});
+		int deleted = 0;
+		for(int i = 0; i < files.length && size > diskCapacity; i++) {
+			size -= files[i].length();
+			if(files[i].delete())
+				deleted++;
+		}
+		Log.d( getClass().getName(), "trimmed " + deleted + " cached metadata files" );
+	}
+
+	private File getFile(String id) {
+		return new File(directory, Integer.toHexString(id.hashCode()));
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if(value != null)
+			out.writeUTF(value);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * remove the metadata from memory, the disk tier is kept
+	 */
+	public synchronized void clearMemory() {
+		memory.clear();
+	}
+
+	/**
+	 * log the hit rates of the tiers
+	 */
+	public synchronized void logStatistics() {
+		final int total = memoryHitCount + diskHitCount + missCount + sharedCount;
+		Log.i( getClass().getName(), "metadata cache memory hits: " + memoryHitCount + " disk hits: " + diskHitCount +
+									" shared requests: " + sharedCount + " misses: " + missCount +
+									" (" + (total > 0 ? 100 * (total - missCount) / total : 0) + "% hit rate)" );
+	}
+
+	/**
+	 * metadata of the disk tier
+	 */
+	private static final class CachedMetadata extends ResultMetadata {
+		private CachedMetadata(String id, String title, String artist, List<Tag> tags, File cover) {
+			super(id);
+			setTitle(title);
+			setArtist(artist);
+			setTags(tags);
+			setCover(cover);
+		}
+	}
+
+	private static final class CachedTag extends Tag {
+		private CachedTag(String name, String value) {
+			super(name, value);
+		}
+	}
+}
@@ -1,19 +1,39 @@
 package com.mufin.ams_demo.components;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Executor;
 
 import android.util.Log;
 
+import com.mufin.android.common.AudioHistory;
+import com.mufin.android.common.BlockingQueueThread.OverflowPolicy;
+import com.mufin.android.common.AudioSource;
+import com.mufin.android.common.CachingSearchWorker;
 import com.mufin.android.common.ExtractorTask;
 import com.mufin.android.common.ExtractorThread;
+import com.mufin.android.common.FutureSearchWorker;
+import com.mufin.android.common.HedgingSearchWorker;
+import com.mufin.android.common.LocalIndex;
+import com.mufin.android.common.LocalIndexSearchWorker;
+import com.mufin.android.common.SampleBuffer;
 import com.mufin.android.common.SampleRecorder;
+import com.mufin.android.common.SampleRing;
 import com.mufin.android.common.SearchTask;
 import com.mufin.android.common.SearchTask.SearchWorker;
 import com.mufin.android.common.SearchTask.SearchWorkerBuilder;
 import com.mufin.android.common.SearchThread;
+import com.mufin.android.common.SearchWorkerPool;
+import com.mufin.android.common.SilenceGate;
+import com.mufin.android.common.TaskRuntime;
 import com.mufin.ears.common.ComponentIds;
 import com.mufin.ears.common.IdentifyResult;
 import com.mufin.ears.common.LicenseException;
@@ -43,6 +63,18 @@ implements SampleRecorder.Listener,
 		continuous, single_scan
 	}
 	
+	/**
+	 * The enum for the transport of recorded samples to the {@link ExtractorTask}
+	 */
+	public enum PipelineMode {
+		/** recorded periods are posted to the main looper and forwarded by {@link RecordingIdentificationController#onRecorded(SampleRecorder, SampleBuffer)} */
+		looper,
+		/** the recorder publishes to a {@link SampleRing} and the extractor reads it with its own cursor */
+		ring,
+		/** the recorder thread puts recorded periods to the extractor, only notifications are posted to the main looper */
+		direct
+	}
+	
 	/**
 	 * The enum for the supported identification types of this controller.<br/>
 	 * This enum prepares the use of this class for multiple servers or hybrid cases.<br/>
@@ -51,13 +83,15 @@ implements SampleRecorder.Listener,
 	 * <li>extend {@link EarsSettings} for additional data, e.g. cds session</li>
 	 * <li>implement new SearchWorker, e.g. CDSSearchWorker</li>
 	 * <li>extend {@link RecordingIdentificationController#onFingerprintFull(ExtractorTask, Fingerprint, long)} method,
-	 * and add {@link RecordingIdentificationController#putFingerprintToTask(EarsType, Fingerprint, long, SearchWorkerBuilder)} 
+	 * and add {@link RecordingIdentificationController#putFingerprintToTask(EarsType, Fingerprint, long, SearchWorkerBuilder, FanOutQuery)} 
 	 * with new SearchWorker and appropriate enum value </li>
 	 * <li>the new enum type will be reported by {@link ControllerEvents#earsResult(EarsType, ArrayList, long)} 
 	 * to handle the specific result in activity</li>
 	 */
 	public enum EarsType {
-		ams
+		ams,
+		/** the catalog on the device, see {@link RecordingIdentificationController#setLocalIndex(LocalIndex)} */
+		local
 	}
 	
 	/**
@@ -88,9 +122,39 @@ implements SampleRecorder.Listener,
 		public EarsSettings(EarsSettings other) {
 			this(other.host, other.port, other.path, other.useRedirector, other.networkTimeout);
 		}
+		
+		@Override
+		public int hashCode() {
+			int result = host == null ? 0 : host.hashCode();
+			result = 31 * result + port;
+			result = 31 * result + (path == null ? 0 : path.hashCode());
+			result = 31 * result + (useRedirector ? 1 : 0);
+			result = 31 * result + (int)(networkTimeout ^ (networkTimeout >>> 32));
+			return result;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if(this == obj) return true;
+			if(!(obj instanceof EarsSettings)) return false;
+			
+			EarsSettings other = (EarsSettings) obj;
+			return (host == null ? other.host == null : host.equals(other.host))
+					&& port == other.port
+					&& (path == null ? other.path == null : path.equals(other.path))
+					&& useRedirector == other.useRedirector
+					&& networkTimeout == other.networkTimeout;
+		}
 	}
 	
 	private ControllerEvents handler;
+	
+	/** the idle search sessions of all controllers, keyed by {@link EarsSettings} */
+	private static final SearchWorkerPool SESSION_POOL = new SearchWorkerPool();
+	/** the count of controllers, which weren't destroyed, the idle sessions are closed with the last one, guarded by {@link #SESSION_POOL} */
+	private static int controllerCount = 0;
+	/** flag, if {@link #destroy()} was called */
+	private boolean destroyed = false;
 
 	/* ########
 	 * recorder
@@ -111,6 +175,72 @@ implements SampleRecorder.Listener,
 	private boolean overlap = false;
 	/** the recording overlap, interval [0..1) */
 	private static final float DEFAULT_OVERLAP = 0.4f;
+	/** the sample transport from recorder to extractor */
+	private PipelineMode pipelineMode = PipelineMode.looper;
+	/** the audio input of the recorder, null for the microphone */
+	private AudioSource audioSource = null;
+	/** the recorder emission hop in ms, see {@link SampleRecorder#setHopDuration(int)} */
+	private int hopDuration = SampleRecorder.HOP_DURATION_PERIOD;
+	/** flag to post every recorded buffer to {@link ControllerEvents#recorderUpdate(short[], int)} */
+	private boolean recorderUpdates = true;
+	/** the start time of the current recording, to log the looper message rate */
+	private long recorderStartTime = 0;
+	/** the maximum count of recorded buffers queued for the extractor */
+	private int extractorQueueCapacity = 16;
+	/** the behaviour, if the extractor falls behind */
+	private OverflowPolicy extractorOverflowPolicy = OverflowPolicy.drop_oldest;
+	/** the maximum count of fingerprints queued for a search task */
+	private int searchQueueCapacity = 4;
+	/** the behaviour, if a search task falls behind */
+	private OverflowPolicy searchOverflowPolicy = OverflowPolicy.drop_oldest;
+	/** the maximum count of concurrent search requests per search task */
+	private int searchSessions = 3;
+	/** flag to build the first search session, while the first query is recorded */
+	private boolean speculativeSession = false;
+	/** the percentile of recent search durations, after which a duplicate request is sent, 0 to disable */
+	private float hedgePercentile = 0.f;
+	/** the settings of the duplicate request, null for a second session with {@link #settings} */
+	private EarsSettings hedgeSettings = null;
+	/** the confidence of a result, which stops a {@link RecordingMode#single_scan}, 0 to disable */
+	private int earlyStopConfidence = 0;
+	/** the duration of the first fingerprint of a progression in ms, 0 for fixed length fingerprints */
+	private int progressionDuration = 0;
+	/** the duration added to each fingerprint of a progression in ms */
+	private int progressionStep = 0;
+	/** the cache of search results, null to send every query */
+	private CachingSearchWorker.ResultCache resultCache = null;
+	/** the catalog searched on the device, null to search the server only */
+	private LocalIndex localIndex = null;
+	/** flag to race the search backends for each fingerprint, see {@link #setFanOut(boolean)} */
+	private boolean fanOut = false;
+	/** the confidence of a result, which wins the race of the backends, by type */
+	private final EnumMap<EarsType, Integer> confidenceThresholds = new EnumMap<EarsType, Integer>( EarsType.class );
+	/** the race of each queued fingerprint, until it's answered or dropped */
+	private final Map<Fingerprint, FanOutQuery> fanOutFingerprints = Collections.synchronizedMap( new IdentityHashMap<Fingerprint, FanOutQuery>() );
+	/** the executor of the extractor and search tasks, null for the default of {@link TaskRuntime} */
+	private Executor taskExecutor = null;
+	/** flag to record at the native rate of the device, see {@link SampleRecorder#setNativeCapture(boolean)} */
+	private boolean nativeCapture = false;
+	/** flag to skip silent audio before extraction */
+	private boolean silenceGate = false;
+	/** the level to open the silence gate in dBFS */
+	private float gateOpenLevel = SilenceGate.DEFAULT_OPEN_LEVEL;
+	/** the level to close the silence gate in dBFS */
+	private float gateCloseLevel = SilenceGate.DEFAULT_CLOSE_LEVEL;
+	/** the time below the close level to close the silence gate in ms */
+	private int gateHoldDuration = SilenceGate.DEFAULT_HOLD_DURATION;
+	/** the minimum duration of audio kept in the sample ring in ms */
+	private static final int MIN_RING_DURATION = 4000;
+	/** the ring of the running recorder, if {@link PipelineMode#ring} */
+	private volatile SampleRing sampleRing = null;
+	/** the file to keep the recorded audio in, null if disabled */
+	private File historyFile = null;
+	/** the duration of recorded audio to keep in ms */
+	private int historyDuration = -1;
+	/** the recorded audio of the last recording, kept until the next start */
+	private volatile AudioHistory history = null;
+	/** the running searches of {@link #identifyHistory(long, int)} */
+	private final ArrayList<HistorySearch> historySearches = new ArrayList<HistorySearch>();
 	
 	private volatile EarsSettings settings;
 	
@@ -119,6 +249,8 @@ implements SampleRecorder.Listener,
 	 * ######## */
 	/** the identify thread/queue list, supports multiple threads for identification like hybrid cases */
 	private volatile HashMap<EarsType, SearchTask> tasks;
+	/** the reverse lookup of {@link #tasks}, the type and the pending races of each task */
+	private final IdentityHashMap<SearchTask, RegisteredTask> registeredTasks = new IdentityHashMap<SearchTask, RegisteredTask>();
 	
 	/* ########
 	 * XTR
@@ -146,6 +278,10 @@ implements SampleRecorder.Listener,
 		this.overlap = overlap;
 
 		this.settings = new EarsSettings( settings );
+		
+		synchronized( SESSION_POOL ) {
+			controllerCount++;
+		}
 	}
 	
 	/**
@@ -161,18 +297,36 @@ implements SampleRecorder.Listener,
 		// extraction thread need to know what kind of samples will come
 		try
         {
-	        xtrTask = new ExtractorThread( queryDuration, overlap ? DEFAULT_OVERLAP : 0.f,
-	        							SampleRecorder.SAMPLE_RATE, 
-	        							SampleRecorder.CHANNEL_CONFIGURATION_COUNT );
+	        ExtractorThread xtrThread = new ExtractorThread( queryDuration, overlap ? DEFAULT_OVERLAP : 0.f,
+	        							getSampleRate(), 
+	        							getChannelCount() );
+	        xtrThread.setQueueCapacity( extractorQueueCapacity, extractorOverflowPolicy );
+	        xtrThread.setExecutor( taskExecutor );
+	        xtrThread.setProgression( progressionDuration, progressionStep );
+	        if( silenceGate )
+	        	xtrThread.setSilenceGate( new SilenceGate( getSampleRate(), getChannelCount(), 
+	        										gateOpenLevel, gateCloseLevel, gateHoldDuration ) );
+	        xtrTask = xtrThread;
+	        
+	        // connect the search sessions, while the first query is recorded
+	        SearchWorkerBuilder amsFactory = createAmsWorkerFactory( settings );
+	        if( speculativeSession )
+	        {
+	        	// the search task waits for the session with the first search, not the looper
+	        	SearchWorkerBuilder amsBuilder = createAmsBuilder();
+	        	startSearchTask( EarsType.ams, new FutureSearchWorker( amsBuilder, taskExecutor ), amsBuilder );
+	        	SESSION_POOL.prewarm( settings, amsFactory, searchSessions - 1 );
+	        }
+	        else
+	        {
+	        	SESSION_POOL.prewarm( settings, amsFactory, searchSessions );
+	        }
         }
         catch( LicenseException e )
         {
         	if(handler != null) handler.earsError( EarsType.ams, e.getMessage(), -1 );
         	return;
         }
-		// run
-		xtrTask.start( this );
-		
 		// init audio recording
         // duration is an experimental value, that is compromise between fast extractor update and
         // and heavy delegate calls, try best results...
@@ -191,14 +345,54 @@ implements SampleRecorder.Listener,
 				recordingDuration
 		);
 		
-		recording = true;
-		
 		recorder = new SampleRecorder( 
 					durationMs,
 					recordingDuration_,
 					delayDuration,
 					this );
 		
+		recorder.setAudioSource( audioSource );
+		recorder.setHopDuration( hopDuration );
+		recorder.setUpdatesEnabled( recorderUpdates );
+		recorder.setNativeCapture( nativeCapture );
+		
+		openHistory();
+		recorder.setHistory( history );
+		
+		if( pipelineMode == PipelineMode.ring )
+		{
+			// the ring must hold the delay and some periods, in case the extractor falls behind
+			int ringDuration = Math.max( MIN_RING_DURATION, 2 * (queryDuration + delayDuration) );
+			sampleRing = new SampleRing( getSampleRate() * getChannelCount() / 1000 * ringDuration );
+			recorder.setSampleRing( sampleRing );
+			
+			// the delay is applied by holding back samples from the extractor cursor
+			int delaySamples = (int)(getSampleRate() * getChannelCount() * (delayDuration / 1000f));
+			xtrTask.start( this, sampleRing.newCursor( delaySamples ) );
+		}
+		else
+		{
+			sampleRing = null;
+			xtrTask.start( this );
+			
+			if( pipelineMode == PipelineMode.direct )
+			{
+				// the task of this recording, the field is replaced on restart
+				final ExtractorTask task = xtrTask;
+				recorder.setSampleConsumer( new SampleRecorder.SampleConsumer()
+				{
+					@Override
+					public void onSamples( SampleRecorder source, SampleBuffer samples )
+					{
+						task.putSamples( samples.retain() ); // released by the extractor
+					}
+				} );
+			}
+		}
+		
+		recording = true;
+		recorderStartTime = System.currentTimeMillis();
+		
 		recorder.start();
 	}
 	
@@ -232,7 +426,21 @@ implements SampleRecorder.Listener,
 		
 		// if it is already ended, no effect
 		if(recorder != null) 
+		{
 			recorder.cancel();
+			
+			long duration = System.currentTimeMillis() - recorderStartTime;
+			Log.d( getClass().getName(), "recorder posted " + recorder.getMessageCount() + " main looper messages in " + duration + "ms" +
+										" (" + (duration > 0 ? recorder.getMessageCount() * 1000f / duration : 0) + "/s), pipeline: " + pipelineMode );
+		}
+		
+		sampleRing = null;
+		
+		// the queued fingerprints are discarded
+		fanOutFingerprints.clear();
+		
+		if( resultCache != null )
+			resultCache.logStatistics();
 	}
 	
 	/**
@@ -251,10 +459,107 @@ implements SampleRecorder.Listener,
 			tasks.clear();
 			tasks = null;
 		}
+		registeredTasks.clear();
+		
+		// the searches of the history may run after the recording
+		for( HistorySearch search : new ArrayList<HistorySearch>( historySearches ) )
+			search.end();
 		
 		handler = null;
 		
 		recorder = null;
+		
+		// the sessions are kept for other controllers, e.g. of a recreated activity
+		synchronized( SESSION_POOL ) {
+			if( !destroyed && --controllerCount == 0 )
+			{
+				Log.d( getClass().getName(), "close idle search sessions" );
+				SESSION_POOL.clear();
+			}
+			destroyed = true;
+		}
+		
+		if( history != null )
+		{
+			history.close();
+			history = null;
+		}
+	}
+	
+	/**
+	 * replace the history of the previous recording with a new one, if enabled
+	 */
+	private void openHistory()
+	{
+		if( history != null )
+		{
+			history.close();
+			history = null;
+		}
+		if( historyFile == null ) return;
+		
+		try
+		{
+			history = new AudioHistory( historyFile, 
+										getSampleRate(),
+										getChannelCount(),
+										historyDuration );
+		}
+		catch( IOException e )
+		{
+			Log.e( getClass().getName(), "can't create audio history: " + e.getMessage(), e );
+		}
+	}
+	
+	/**
+	 * extract and search a window of the recorded audio again, e.g. after a network error or a weak result.<br/>
+	 * the window is searched by the ams backend with an own extractor and search task, also when not recording, 
+	 * it doesn't affect the searches of the recording. the results are reported by 
+	 * {@link ControllerEvents#historyResult(EarsType, ArrayList, long)}, the positions refer to the recording start.
+	 * the tasks end after the last answer, or by {@link #destroy()}.
+	 * @param position the start of the window in ms since recording start
+	 * @param duration the window duration in ms, at least the query duration
+	 * @return false if the window is not (or no longer) in the history
+	 * @throws LicenseException 
+	 */
+	public boolean identifyHistory( long position, int duration ) throws LicenseException
+	{
+		final AudioHistory h = history;
+		if( h == null ) return false;
+		
+		final long start = h.toPosition( position );
+		short[] samples = new short[ (int)h.toPosition( duration ) ];
+		try
+		{
+			if( h.read( start, samples, 0, samples.length ) < samples.length )
+				return false;
+		}
+		catch( IllegalArgumentException e )
+		{
+			Log.w( getClass().getName(), "identify history: " + e.getMessage() );
+			return false;
+		}
+		
+		// separate tasks, the window must not be mixed with the running extraction and searches
+		ExtractorThread task = new ExtractorThread( queryDuration, overlap ? DEFAULT_OVERLAP : 0.f,
+													h.getSampleRate(), h.getChannels() );
+		task.setStartPosition( start );
+		task.setExecutor( taskExecutor );
+		
+		final SearchWorkerBuilder builder = createAmsBuilder();
+		SearchThread searchThread = new SearchThread();
+		searchThread.setExecutor( taskExecutor );
+		searchThread.setSearchSessions( searchSessions, builder );
+		
+		HistorySearch search = new HistorySearch( task, searchThread );
+		searchThread.start( builder.build(), search );
+		historySearches.add( search );
+		
+		task.start( search );
+		task.putSamples( samples );
+		task.finish();
+		
+		return true;
 	}
 	
 	/**
@@ -303,6 +608,272 @@ implements SampleRecorder.Listener,
 	public void setRecordingIsOverlapping(boolean overlap) {
 		this.overlap = overlap;
 	}
+	
+	public PipelineMode getPipelineMode() {
+		return pipelineMode;
+	}
+	
+	/**
+	 * sets the sample transport from recorder to extractor.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param pipelineMode
+	 */
+	public void setPipelineMode(PipelineMode pipelineMode) {
+		this.pipelineMode = pipelineMode;
+	}
+	
+	/**
+	 * limit the recorded buffers queued for the extractor, to bound memory and latency, 
+	 * if the extractor falls behind. not used in {@link PipelineMode#ring}.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param capacity the maximum count of queued buffers, <= 0 for unbounded
+	 * @param policy the behaviour of a full queue
+	 */
+	public void setExtractorQueue(int capacity, OverflowPolicy policy) {
+		this.extractorQueueCapacity = capacity;
+		this.extractorOverflowPolicy = policy;
+	}
+	
+	/**
+	 * limit the fingerprints queued for a search task, to bound memory and latency, 
+	 * if the search falls behind.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param capacity the maximum count of queued fingerprints, <= 0 for unbounded
+	 * @param policy the behaviour of a full queue
+	 */
+	public void setSearchQueue(int capacity, OverflowPolicy policy) {
+		this.searchQueueCapacity = capacity;
+		this.searchOverflowPolicy = policy;
+	}
+	
+	/**
+	 * set the executor of the extractor and search tasks, e.g. a pool shared by several controllers.<br/>
+	 * changes are applied to tasks started afterwards
+	 * @param executor the executor, or null for the default of {@link TaskRuntime}
+	 */
+	public void setTaskExecutor(Executor executor) {
+		this.taskExecutor = executor;
+	}
+	
+	/**
+	 * set the maximum count of concurrent search requests per search task, each with an own server session.<br/>
+	 * changes are applied to search tasks started afterwards
+	 * @param searchSessions the maximum count of concurrent requests, 1 to search one fingerprint at a time
+	 */
+	public void setSearchSessions(int searchSessions) {
+		this.searchSessions = searchSessions;
+	}
+	
+	/**
+	 * build the first search session in the background, while the first query is recorded, 
+	 * so the first search is sent as soon as the fingerprint is full.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param speculativeSession true to build the session on start of the recorder, 
+	 * false to build it with the first fingerprint
+	 */
+	public void setSpeculativeSession(boolean speculativeSession) {
+		this.speculativeSession = speculativeSession;
+	}
+	
+	/**
+	 * send a duplicate request, if a search has no answer after a percentile of the recent search durations.
+	 * the first answer is used.<br/>
+	 * changes are applied to search tasks started afterwards
+	 * @param percentile the percentile of the recent search durations, interval (0..1], 0 to disable hedging
+	 * @param hedgeSettings the settings of the duplicate request, e.g. the direct server instead of the redirector,
+	 * or null for a second session with the same settings
+	 */
+	public void setHedging(float percentile, EarsSettings hedgeSettings) {
+		this.hedgePercentile = percentile;
+		this.hedgeSettings = hedgeSettings != null ? new EarsSettings( hedgeSettings ) : null;
+	}
+	
+	/**
+	 * stop a {@link RecordingMode#single_scan} with the first result at or above the confidence threshold.<br/>
+	 * a backend with a threshold of {@link #setConfidenceThreshold(EarsType, int)} stops the scan at its own threshold,
+	 * as its confidence scale differs, the given threshold applies to the other backends.<br/>
+	 * the result is delivered to {@link ControllerEvents#earsResult(EarsType, ArrayList, long)} first,
+	 * then the queued fingerprints and samples are discarded, and the recorder and the tasks are stopped.
+	 * @param confidenceThreshold the minimum confidence of the result, 0 to disable
+	 */
+	public void setEarlyTermination(int confidenceThreshold) {
+		this.earlyStopConfidence = confidenceThreshold;
+	}
+	
+	/**
+	 * search a short fingerprint first and extend it with the next audio, up to the query duration,
+	 * so a match on little audio is found faster. the fingerprints stop growing with the first result at or above
+	 * {@link #setConfidenceThreshold(EarsType, int)} of its backend, results of backends without threshold don't stop them.
+	 * the scan stops with {@link #setEarlyTermination(int)} in single scan mode.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param initialDuration the duration of the first fingerprint in ms, 0 for fixed length fingerprints
+	 * @param stepDuration the duration added with each step in ms
+	 * @see ExtractorThread#setProgression(int, int)
+	 */
+	public void setProgressiveQuery(int initialDuration, int stepDuration) {
+		this.progressionDuration = initialDuration;
+		this.progressionStep = stepDuration;
+	}
+	
+	/**
+	 * answer repeated queries, e.g. of the same broadcast audio, from a cache instead of the server.<br/>
+	 * the cache may be shared by several controllers. changes are applied to search tasks started afterwards
+	 * @param resultCache the cache, or null to send every query
+	 */
+	public void setResultCache(CachingSearchWorker.ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+	
+	/**
+	 * search each fingerprint in a catalog on the device too, the results are reported as {@link EarsType#local}.<br/>
+	 * changes are applied to the next fingerprint
+	 * @param localIndex the catalog, or null to search the server only
+	 * @see LocalIndex#open(File)
+	 */
+	public void setLocalIndex(LocalIndex localIndex) {
+		this.localIndex = localIndex;
+	}
+	
+	/**
+	 * send each fingerprint to all search backends concurrently, e.g. {@link EarsType#local} and {@link EarsType#ams},
+	 * and deliver only the first confident result, see {@link #setConfidenceThreshold(EarsType, int)}.<br/>
+	 * the searches of the other backends are skipped, if they haven't started yet, otherwise their results are dropped.
+	 * if no backend is confident, the last answer is delivered.<br/>
+	 * changes are applied to search tasks started afterwards
+	 * @param fanOut true to race the backends, false to deliver the results of each backend
+	 */
+	public void setFanOut(boolean fanOut) {
+		this.fanOut = fanOut;
+	}
+	
+	/**
+	 * set the confidence of a result of the given backend, which wins the race of {@link #setFanOut(boolean)},
+	 * stops the progression of {@link #setProgressiveQuery(int, int)} and replaces the threshold of {@link #setEarlyTermination(int)}.<br/>
+	 * the confidence scales differ by backend, without a threshold no result of the backend is confident. 
+	 * changes are applied immediately
+	 * @param earsType the backend
+	 * @param confidence the minimum confidence
+	 */
+	public void setConfidenceThreshold(EarsType earsType, int confidence) {
+		confidenceThresholds.put( earsType, confidence );
+	}
+	
+	public boolean isNativeCapture() {
+		return nativeCapture;
+	}
+	
+	/**
+	 * record the microphone at the native rate of the device and convert it to the extractor rate.<br/>
+	 * see {@link SampleRecorder#setNativeCapture(boolean)}, changes are applied after restarting the recorder
+	 * @param nativeCapture true to record at the native rate
+	 */
+	public void setNativeCapture(boolean nativeCapture) {
+		this.nativeCapture = nativeCapture;
+	}
+	
+	public boolean isSilenceGateEnabled() {
+		return silenceGate;
+	}
+	
+	/**
+	 * skip silent audio before extraction, so no fingerprints of a quiet room are searched.<br/>
+	 * see {@link SilenceGate}, changes are applied after restarting the recorder
+	 * @param enabled true to enable the gate
+	 * @param openLevel the level to open the gate in dBFS
+	 * @param closeLevel the level to close the gate in dBFS
+	 * @param holdDuration the time the level must stay below closeLevel to close the gate in ms
+	 */
+	public void setSilenceGate(boolean enabled, float openLevel, float closeLevel, int holdDuration) {
+		if( closeLevel > openLevel || holdDuration < 0 )
+			throw new IllegalArgumentException( "invalid silence gate " + openLevel + "/" + closeLevel + "dB " + holdDuration + "ms" );
+		this.silenceGate = enabled;
+		this.gateOpenLevel = openLevel;
+		this.gateCloseLevel = closeLevel;
+		this.gateHoldDuration = holdDuration;
+	}
+	
+	public boolean getRecorderUpdates() {
+		return recorderUpdates;
+	}
+	
+	/**
+	 * enable or disable {@link ControllerEvents#recorderUpdate(short[], int)} for every recorded buffer.<br/>
+	 * disable it, if the handler doesn't use the updates, to keep the main looper free of the messages.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param recorderUpdates true (default) to receive the updates
+	 */
+	public void setRecorderUpdates(boolean recorderUpdates) {
+		this.recorderUpdates = recorderUpdates;
+	}
+	
+	public AudioSource getAudioSource() {
+		return audioSource;
+	}
+	
+	/**
+	 * sets the audio input of the recorder, e.g. a {@link com.mufin.android.common.PcmFileSource} 
+	 * to replay captured audio through extraction and search as fast as possible.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param audioSource the source, or null for the microphone
+	 */
+	public void setAudioSource(AudioSource audioSource) {
+		this.audioSource = audioSource;
+	}
+	
+	/**
+	 * @return the sample rate of the recorder audio
+	 */
+	private int getSampleRate() {
+		return audioSource != null ? audioSource.getSampleRate() : SampleRecorder.SAMPLE_RATE;
+	}
+	
+	/**
+	 * @return the channel count of the recorder audio
+	 */
+	private int getChannelCount() {
+		return audioSource != null ? audioSource.getChannelCount() : SampleRecorder.CHANNEL_CONFIGURATION_COUNT;
+	}
+	
+	public int getHopDuration() {
+		return hopDuration;
+	}
+	
+	/**
+	 * sets the recorder emission hop, to forward audio to the extractor as soon as it is read, 
+	 * instead of periods. see {@link SampleRecorder#setHopDuration(int)}<br/>
+	 * changes are applied after restarting the recorder
+	 * @param hopDuration the hop in ms, {@link SampleRecorder#HOP_DURATION_PERIOD} or {@link SampleRecorder#HOP_DURATION_READ}
+	 */
+	public void setHopDuration(int hopDuration) {
+		this.hopDuration = hopDuration;
+	}
+	
+	/**
+	 * keep the recorded audio in a memory-mapped file, to identify past audio again by {@link #identifyHistory(long, int)}.<br/>
+	 * changes are applied after restarting the recorder
+	 * @param file the history file, the file is overwritten and deleted on destroy. null to disable
+	 * @param historyDuration the duration of audio to keep in ms, e.g. some minutes
+	 */
+	public void setHistory( File file, int historyDuration ) {
+		this.historyFile = file;
+		this.historyDuration = historyDuration;
+	}
+	
+	/**
+	 * @return the history of the current or last recording, or null if disabled
+	 */
+	public AudioHistory getHistory() {
+		return history;
+	}
+	
+	/**
+	 * the ring of the running recorder, e.g. to read samples for a level meter 
+	 * with an own {@link SampleRing#newCursor()}, which must be closed after use.
+	 * @return the ring or null if not recording in {@link PipelineMode#ring}
+	 */
+	public SampleRing getSampleRing() {
+		return sampleRing;
+	}
 
 	/**
 	 * sets the connetion host and port for the audioid server.<br/>
@@ -330,20 +901,12 @@ implements SampleRecorder.Listener,
 	}
 	
 	/**
-	 * walk the tasks list and return the type of the given task source
-	 * @param source
-	 * @return the type of the given task source
+	 * @param source the task
+	 * @return the registration of the given task source, or null if the task was replaced,
+	 * e.g. by the speculative session of the next recording, while its messages were queued
 	 */
-	private EarsType getSourceType( SearchTask source ) {
-		for (Entry<EarsType, SearchTask> entry : tasks.entrySet())
-		{
-			if(entry.getValue() == source)
-			{
-				return entry.getKey();
-			}
-		}
-		
-		throw new IllegalArgumentException( "No key for source (" + source + ") found in tasks map." );
+	private RegisteredTask getRegisteredTask( SearchTask source ) {
+		return registeredTasks.get( source );
 	}
 	
 	/**
@@ -353,9 +916,10 @@ implements SampleRecorder.Listener,
 	 * @param fp the fingerprint to search
 	 * @param fingerprintPosition the query position in the audio
 	 * @param builder the builder of the searchworker for lazy initialization of {@link SearchWorker}, if the task is newly created
+	 * @param query the race of the backends for this fingerprint, or null
 	 * @throws LicenseException 
 	 */
-	private void putFingerprintToTask( EarsType earsType, Fingerprint fp, long fingerprintPosition, SearchWorkerBuilder builder ) throws LicenseException
+	private void putFingerprintToTask( EarsType earsType, Fingerprint fp, long fingerprintPosition, SearchWorkerBuilder builder, FanOutQuery query ) throws LicenseException
 	{
 		if( tasks == null )
 		{
@@ -366,22 +930,32 @@ implements SampleRecorder.Listener,
 		
 		if( task == null || !task.isRunning() )
 		{
-			SearchWorker worker = builder.build();
-			
 			// re-create the thread and start again, if first call other thread ended preceding run
-			// start identify and extractor thread/queue
-			task = new SearchThread();
-			//  the resource-ownership move to SearchTask
-			task.start( worker, this );
-			tasks.put( earsType, task );
+			task = startSearchTask( earsType, builder.build(), builder );
 		}
 
+		// the search may start immediately, the answer is matched by the fingerprint
+		final RegisteredTask registered = registeredTasks.get( task );
+		if( query != null )
+		{
+			query.register();
+			fanOutFingerprints.put( fp, query );
+			registered.queries.put( fp, query );
+		}
+		
 		try {
 			// send the query
 			task.putFingerprint( fp, fingerprintPosition );
 		} catch(IllegalStateException e) {
+			if( query != null )
+			{
+				// the other backends decide the race
+				fanOutFingerprints.remove( fp );
+				registered.queries.remove( fp );
+				query.answer( false );
+			}
 			// TODO: handle multiple long running and give message to controller owner
-			Log.w( getClass().getName(), "skip current identification: previous identification running" );
+			Log.w( getClass().getName(), "skip current identification: search task cancelled" );
 		}
 	}
 
@@ -410,26 +984,30 @@ implements SampleRecorder.Listener,
 	 * {@inheritDoc}
 	 */
 	@Override
-	public final void onRecorded( SampleRecorder source, short[] samples ) {
+	public final void onRecorded( SampleRecorder source, SampleBuffer samples ) {
 		// if recording was stopped
 		if(!isRecording()) return;
 		
-		xtrTask.putSamples( samples );
+		// in ring or direct mode the extractor got the samples already
+		if( pipelineMode == PipelineMode.looper )
+			xtrTask.putSamples( samples.retain() ); // released by the extractor
 		
-		if(handler != null) handler.recorderRecorded( samples, false );
+		if(handler != null) handler.recorderRecorded( samples.getSamples(), false );
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public final void onRecorderFinished( SampleRecorder source, short[] samples ) {
+	public final void onRecorderFinished( SampleRecorder source, SampleBuffer samples ) {
 		// if recording was stopped
 		if(!isRecording()) return;
 		
-		xtrTask.putSamples( samples );
+		// in ring or direct mode the extractor got the samples already
+		if( pipelineMode == PipelineMode.looper )
+			xtrTask.putSamples( samples.retain() ); // released by the extractor
 		
-		if(handler != null) handler.recorderRecorded( samples, true );
+		if(handler != null) handler.recorderRecorded( samples.getSamples(), true );
 	}
 
 	/**
@@ -447,23 +1025,21 @@ implements SampleRecorder.Listener,
 	public void onFingerprintFull( ExtractorTask source, Fingerprint fp, long fingerprintPosition ) {
 		// Lazy build worker, to prevent session create if not necessary.
 		// Builder.build() is called in putFingerprintToTask(), if there is no thread for given EarsType available,
-		// the builder creates a new worker and therefore a new server session.
-		// The resource management of the session object, will be owned (and released) by the created SearchTask.
-		SearchWorkerBuilder amsBuilder = new SearchWorkerBuilder() {
-			@Override
-			public SearchWorker build() throws LicenseException {
-				return new RearsSearchWorker( 
-						settings.host, 
-						settings.port, 
-						settings.path,
-						settings.useRedirector,
-						settings.networkTimeout );
-			}
-		};
+		// the builder borrows an idle session from the pool, or creates a new worker and therefore a new server session.
+		// The borrowed session is returned to the pool, when the SearchTask destroys the worker.
+		SearchWorkerBuilder amsBuilder = createAmsBuilder();
+		// the race of the backends for this fingerprint, null to deliver all results
+		final FanOutQuery query = fanOut ? new FanOutQuery() : null;
 		
 		try
         {
-	        putFingerprintToTask( EarsType.ams, fp, fingerprintPosition, amsBuilder );
+	        final LocalIndex index = localIndex;
+	        if( index != null )
+	        {
+	        	// the tasks search in parallel, they must not share the native fingerprint
+	        	putFingerprintToTask( EarsType.local, new Fingerprint( fp ), fingerprintPosition, createLocalBuilder( index ), query );
+	        }
+	        putFingerprintToTask( EarsType.ams, fp, fingerprintPosition, amsBuilder, query );
         }
         catch( LicenseException e )
         {
@@ -476,6 +1052,133 @@ implements SampleRecorder.Listener,
         }
 	}
 
+	/**
+	 * create and start the search task of the given {@link EarsType}, and register it in {@link #tasks} list.
+	 * @param earsType the ears type key
+	 * @param worker the first worker of the task, the resource-ownership move to the task
+	 * @param builder the builder of additional workers for concurrent searches
+	 * @return the started task
+	 */
+	private SearchTask startSearchTask( EarsType earsType, SearchWorker worker, SearchWorkerBuilder builder )
+	{
+		if( tasks == null )
+		{
+			tasks = new HashMap<EarsType, SearchTask>();
+		}
+		
+		// skip the searches, which are answered by another backend
+		final SearchWorker taskWorker = fanOut ? new FanOutSearchWorker( worker, fanOutFingerprints ) : worker;
+		final SearchWorkerBuilder taskBuilder = fanOut ? createFanOutBuilder( builder, fanOutFingerprints ) : builder;
+		
+		// start identify and extractor thread/queue
+		SearchThread searchThread = new SearchThread();
+		searchThread.setQueueCapacity( searchQueueCapacity, searchOverflowPolicy );
+		searchThread.setExecutor( taskExecutor );
+		searchThread.setSearchSessions( searchSessions, taskBuilder );
+		//  the resource-ownership move to SearchTask
+		searchThread.start( taskWorker, this );
+		
+		SearchTask replaced = tasks.put( earsType, searchThread );
+		if( replaced != null )
+		{
+			// the queued fingerprints of the replaced task are never answered
+			RegisteredTask registered = registeredTasks.remove( replaced );
+			if( registered != null )
+			{
+				for( Entry<Fingerprint, FanOutQuery> pending : registered.queries.entrySet() )
+				{
+					fanOutFingerprints.remove( pending.getKey() );
+					pending.getValue().answer( false );
+				}
+			}
+		}
+		registeredTasks.put( searchThread, new RegisteredTask( earsType ) );
+		return searchThread;
+	}
+
+	/**
+	 * @return the builder of ams search workers, which borrows the sessions from the pool,
+	 * answers repeated queries from the result cache and sends duplicate requests for slow searches, if enabled
+	 */
+	private SearchWorkerBuilder createAmsBuilder() {
+		final SearchWorkerBuilder search = createAmsSearchBuilder();
+		final CachingSearchWorker.ResultCache cache = resultCache;
+		if( cache == null )
+			return search;
+		
+		return new SearchWorkerBuilder() {
+			@Override
+			public SearchWorker build() throws LicenseException {
+				return new CachingSearchWorker( search.build(), cache );
+			}
+		};
+	}
+	
+	/**
+	 * @return the builder of ams search workers without cache
+	 */
+	private SearchWorkerBuilder createAmsSearchBuilder() {
+		final SearchWorkerBuilder primary = SESSION_POOL.builder( settings, createAmsWorkerFactory( settings ) );
+		if( hedgePercentile <= 0.f )
+			return primary;
+		
+		final EarsSettings hedge = hedgeSettings != null ? hedgeSettings : settings;
+		final SearchWorkerBuilder secondary = SESSION_POOL.builder( hedge, createAmsWorkerFactory( hedge ) );
+		final float percentile = hedgePercentile;
+		final Executor executor = taskExecutor;
+		return new SearchWorkerBuilder() {
+			@Override
+			public SearchWorker build() throws LicenseException {
+				return new HedgingSearchWorker( primary.build(), secondary, percentile, executor );
+			}
+		};
+	}
+
+	/**
+	 * @param index the catalog
+	 * @return the builder of search workers of the catalog on the device
+	 */
+	private static SearchWorkerBuilder createLocalBuilder( final LocalIndex index ) {
+		return new SearchWorkerBuilder() {
+			@Override
+			public SearchWorker build() throws LicenseException {
+				return new LocalIndexSearchWorker( index );
+			}
+		};
+	}
+
+	/**
+	 * @param builder the builder of the backend
+	 * @param fanOutFingerprints the races of the queued fingerprints
+	 * @return the builder of search workers, which skip answered fingerprints
+	 */
+	private static SearchWorkerBuilder createFanOutBuilder( final SearchWorkerBuilder builder, final Map<Fingerprint, FanOutQuery> fanOutFingerprints ) {
+		return new SearchWorkerBuilder() {
+			@Override
+			public SearchWorker build() throws LicenseException {
+				return new FanOutSearchWorker( builder.build(), fanOutFingerprints );
+			}
+		};
+	}
+
+	/**
+	 * @param settings the session settings
+	 * @return the builder of new ams search sessions
+	 */
+	private static SearchWorkerBuilder createAmsWorkerFactory( final EarsSettings settings ) {
+		return new SearchWorkerBuilder() {
+			@Override
+			public SearchWorker build() throws LicenseException {
+				return new RearsSearchWorker( 
+						settings.host, 
+						settings.port, 
+						settings.path,
+						settings.useRedirector,
+						settings.networkTimeout );
+			}
+		};
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -488,9 +1191,27 @@ implements SampleRecorder.Listener,
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void onSearchError( SearchTask source, String errorMessage, Integer errorCode ) {
-		EarsType key = getSourceType( source );
-		if(handler != null) handler.earsError( key, errorMessage, errorCode );
+	public void onExtractorFinished( ExtractorTask source ) {
+		// the extractor of the recording is cancelled, not finished
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onSearchError( SearchTask source, Fingerprint fp, String errorMessage, Integer errorCode ) {
+		RegisteredTask task = getRegisteredTask( source );
+		if( task == null )
+		{
+			Log.w( getClass().getName(), "ignore error of replaced search task: " + errorMessage );
+			return;
+		}
+		if( !deliver( task, fp, false ) )
+		{
+			Log.d( getClass().getName(), "fan-out: skip " + task.type + " error" );
+			return;
+		}
+		if(handler != null) handler.earsError( task.type, errorMessage, errorCode );
 	}
 
 	/**
@@ -498,10 +1219,116 @@ implements SampleRecorder.Listener,
 	 */
 	@Override
 	public void onSearchResult( SearchTask source, 
+							Fingerprint fp,
 							ArrayList<IdentifyResult> identifyResult,
 							long searchDuration ) {
-		EarsType key = getSourceType( source );
-		if(handler != null) handler.earsResult( key, identifyResult, searchDuration );
+		RegisteredTask task = getRegisteredTask( source );
+		if( task == null )
+		{
+			Log.w( getClass().getName(), "ignore result of replaced search task" );
+			return;
+		}
+		if( !deliver( task, fp, isConfident( task.type, identifyResult ) ) )
+		{
+			Log.d( getClass().getName(), "fan-out: skip " + task.type + " result" );
+			return;
+		}
+		if(handler != null) handler.earsResult( task.type, identifyResult, searchDuration );
+		
+		// no longer queries are needed for a confident result
+		final ExtractorTask extractor = xtrTask;
+		if( extractor != null && isConfident( task.type, identifyResult ) )
+		{
+			extractor.stopProgression();
+		}
+		
+		// the handler may have stopped the recorder already
+		if( isRecording() && isEarlyStop( task.type, identifyResult ) )
+		{
+			Log.i( getClass().getName(), "confident result, stop scan" );
+			stopRecorder();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void onSearchDropped( SearchTask source, Fingerprint fp ) {
+		RegisteredTask task = getRegisteredTask( source );
+		if( task == null )
+		{
+			fanOutFingerprints.remove( fp );
+			return;
+		}
+		// the dropped search never answers, the other backends decide the race
+		if( deliver( task, fp, false ) && fanOut )
+		{
+			Log.d( getClass().getName(), "fan-out: no answer, " + task.type + " dropped the last pending query" );
+		}
+	}
+	
+	/**
+	 * end the race of the answered fingerprint for the given task
+	 * @param task the answering task
+	 * @param fp the answered fingerprint, or null if the answer isn't caused by a search
+	 * @param confident true for a confident result, false for other results, errors and drops
+	 * @return true to deliver the answer
+	 */
+	private boolean deliver( RegisteredTask task, Fingerprint fp, boolean confident )
+	{
+		final FanOutQuery query = fp != null ? task.queries.remove( fp ) : null;
+		if( query == null )
+			return true;
+		
+		fanOutFingerprints.remove( fp );
+		return query.answer( confident );
+	}
+	
+	/**
+	 * @param earsType the backend
+	 * @param identifyResult the result list, or null if no result
+	 * @return true if a single scan has a result at or above the confidence threshold of the backend,
+	 * or at or above {@link #earlyStopConfidence}, if the backend has no threshold
+	 */
+	private boolean isEarlyStop( EarsType earsType, List<IdentifyResult> identifyResult )
+	{
+		if( recordingMode != RecordingMode.single_scan || earlyStopConfidence <= 0 )
+			return false;
+		
+		// the winner of the race stops the scan
+		Integer threshold = confidenceThresholds.get( earsType );
+		return hasResult( identifyResult, threshold != null ? threshold : earlyStopConfidence );
+	}
+	
+	/**
+	 * @param earsType the backend
+	 * @param identifyResult the result list, or null if no result
+	 * @return true if there is a result at or above the confidence threshold of the backend,
+	 * false if no threshold is set for the backend
+	 */
+	private boolean isConfident( EarsType earsType, List<IdentifyResult> identifyResult )
+	{
+		Integer threshold = confidenceThresholds.get( earsType );
+		return threshold != null && hasResult( identifyResult, threshold );
+	}
+	
+	/**
+	 * @param identifyResult the result list, or null if no result
+	 * @param minConfidence the minimum confidence
+	 * @return true if there is a result at or above the given confidence
+	 */
+	private static boolean hasResult( List<IdentifyResult> identifyResult, int minConfidence )
+	{
+		if( identifyResult == null )
+			return false;
+		
+		for( IdentifyResult result : identifyResult )
+		{
+			if( result != null && result.getConfidence() >= minConfidence )
+				return true;
+		}
+		return false;
 	}
 
 	/**
@@ -535,8 +1362,10 @@ implements SampleRecorder.Listener,
 		if(xtrTask == null || !xtrTask.isRunning())
 		{
 			// extraction thread need to know what kind of samples will come
-			xtrTask = new ExtractorThread( queryDuration, overlap ? DEFAULT_OVERLAP : 0.f,
+			ExtractorThread xtrThread = new ExtractorThread( queryDuration, overlap ? DEFAULT_OVERLAP : 0.f,
 					   SampleRecorder.SAMPLE_RATE, 1 );
+			xtrThread.setExecutor( taskExecutor );
+			xtrTask = xtrThread;
 			// run
 			xtrTask.start(this);
 		}
@@ -560,7 +1389,160 @@ implements SampleRecorder.Listener,
 		Log.d( getClass().getName(), "identifySamplesDirectly set recording to false");
 	}
 
-	private class RearsSearchWorker implements SearchTask.SearchWorker
+	/**
+	 * the extractor and search task of a window of the history, see {@link RecordingIdentificationController#identifyHistory(long, int)}.<br/>
+	 * both are cancelled, when all fingerprints are answered, they don't use the progression, early stop and fan-out of the recording.
+	 */
+	private final class HistorySearch implements ExtractorTask.Listener, SearchTask.Listener
+	{
+		private final ExtractorTask extractor;
+		private final SearchTask search;
+		/** the count of fingerprints without answer */
+		private int pending = 0;
+		/** flag, if all fingerprints of the window are extracted */
+		private boolean extracted = false;
+		
+		private HistorySearch( ExtractorTask extractor, SearchTask search ) {
+			this.extractor = extractor;
+			this.search = search;
+		}
+		
+		@Override
+		public void onFingerprintFull( ExtractorTask source, Fingerprint fp, long fingerprintPosition ) {
+			try {
+				search.putFingerprint( fp, fingerprintPosition );
+				pending++;
+			} catch(IllegalStateException e) {
+				Log.w( getClass().getName(), "skip history query " + fingerprintPosition + ": search task cancelled" );
+			}
+		}
+		
+		@Override
+		public void onExtractorError( ExtractorTask source, String errorMessage, Integer errorCode ) {
+			if(handler != null) handler.historyError( EarsType.ams, errorMessage, errorCode );
+			end();
+		}
+		
+		@Override
+		public void onExtractorFinished( ExtractorTask source ) {
+			extracted = true;
+			endIfAnswered();
+		}
+		
+		@Override
+		public void onSearchError( SearchTask source, Fingerprint fp, String errorMessage, Integer errorCode ) {
+			pending--;
+			if(handler != null) handler.historyError( EarsType.ams, errorMessage, errorCode );
+			endIfAnswered();
+		}
+		
+		@Override
+		public void onSearchResult( SearchTask source, Fingerprint fp, ArrayList<IdentifyResult> identifyResult, long searchDuration ) {
+			pending--;
+			if(handler != null) handler.historyResult( EarsType.ams, identifyResult, searchDuration );
+			endIfAnswered();
+		}
+		
+		@Override
+		public void onSearchDropped( SearchTask source, Fingerprint fp ) {
+			pending--;
+			endIfAnswered();
+		}
+		
+		private void endIfAnswered() {
+			if( extracted && pending <= 0 )
+				end();
+		}
+		
+		/**
+		 * cancel the tasks, the search worker returns to the pool
+		 */
+		private void end() {
+			extractor.cancel();
+			search.cancel();
+			historySearches.remove( this );
+		}
+	}
+
+	/**
+	 * the type of a search task and its pending races by the fingerprints put to the task
+	 */
+	private static final class RegisteredTask
+	{
+		private final EarsType type;
+		private final IdentityHashMap<Fingerprint, FanOutQuery> queries = new IdentityHashMap<Fingerprint, FanOutQuery>();
+		
+		private RegisteredTask( EarsType type ) {
+			this.type = type;
+		}
+	}
+	
+	/**
+	 * the race of the search backends for one fingerprint
+	 */
+	private static final class FanOutQuery
+	{
+		/** the count of backends, which haven't answered */
+		private int pending = 0;
+		/** flag, if a confident result was delivered */
+		private boolean decided = false;
+		
+		private synchronized void register() {
+			pending++;
+		}
+		
+		private synchronized boolean isDecided() {
+			return decided;
+		}
+		
+		/**
+		 * @param confident true for a confident result
+		 * @return true to deliver the answer: the first confident one, or the last one, if none is confident
+		 */
+		private synchronized boolean answer( boolean confident ) {
+			pending--;
+			if( decided )
+				return false;
+			if( confident )
+			{
+				decided = true;
+				return true;
+			}
+			return pending == 0;
+		}
+	}
+	
+	/**
+	 * skips the search of a fingerprint, which is answered by another backend already
+	 */
+	private static class FanOutSearchWorker implements SearchTask.SearchWorker
+	{
+		private final SearchWorker worker;
+		private final Map<Fingerprint, FanOutQuery> fanOutFingerprints;
+		
+		public FanOutSearchWorker(SearchWorker worker, Map<Fingerprint, FanOutQuery> fanOutFingerprints) {
+			this.worker = worker;
+			this.fanOutFingerprints = fanOutFingerprints;
+		}
+		
+		@Override
+		public int search(Fingerprint query, long queryPosition, int numResults,
+				List<IdentifyResult> result) throws LicenseException {
+			FanOutQuery fanOutQuery = fanOutFingerprints.get( query );
+			if( fanOutQuery != null && fanOutQuery.isDecided() )
+			{
+				Log.d( getClass().getName(), "skip search " + queryPosition + ", answered by another backend" );
+				return 0;
+			}
+			return worker.search( query, queryPosition, numResults, result );
+		}
+		
+		public void destroy() {
+			worker.destroy();
+		}
+	}
+
+	private static class RearsSearchWorker implements SearchTask.SearchWorker
 	{
 		private Session session;
 		
@@ -605,16 +1587,16 @@ implements SampleRecorder.Listener,
 		protected void recorderInited( int sampleRate, int channels ){}
 		/**
 		 * update recording status
-		 * @param samples the sample buffer
+		 * @param samples the sample buffer, reused by the recorder after the call
 		 * @param samplesRecordedCount the fill counter of the buffer
 		 * @see SampleRecorder.Listener#onRecorderUpdate(short[], int)
 		 */
 		protected void recorderUpdate( short[] samples, int samplesRecordedCount ){}
 		/**
 		 * sample buffer filled and ready to identify
-		 * @param samples the sample buffer
+		 * @param samples the sample buffer, reused by the recorder after the call
 		 * @param recorderFinished recorder is still in query loop or reached {@link #getRecordingDuration()} duration
-		 * @see {@link SampleRecorder.Listener#onRecorded(short[])} {@link SampleRecorder.Listener#onRecorderFinished(short[])}
+		 * @see {@link SampleRecorder.Listener#onRecorded(SampleRecorder, SampleBuffer)} {@link SampleRecorder.Listener#onRecorderFinished(SampleRecorder, SampleBuffer)}
 		 */
 		protected void recorderRecorded( short[] samples, boolean recorderFinished ){}
 		/**
@@ -645,5 +1627,18 @@ implements SampleRecorder.Listener,
 		 * @see SearchTask.Listener#onEarsResult(SearchTask, ArrayList, long)
 		 */
 		protected void earsResult( EarsType earsType, ArrayList<IdentifyResult> identifyResult, long searchDuration ){}
+		
+		/**
+		 * got error from the extraction or search of {@link RecordingIdentificationController#identifyHistory(long, int)}
+		 * @param errorMessage the message string
+		 * @param errorCode optional error code
+		 */
+		protected void historyError( EarsType earsType, String errorMessage, Integer errorCode ){}
+		/**
+		 * result of {@link RecordingIdentificationController#identifyHistory(long, int)}, also called when not recording
+		 * @param identifyResult the result list, or null if no result
+		 * @param searchDuration the duration of the server request
+		 */
+		protected void historyResult( EarsType earsType, ArrayList<IdentifyResult> identifyResult, long searchDuration ){}
 	}
 }
@@ -0,0 +1,176 @@
+package com.mufin.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * Keeps the last recorded audio in a memory-mapped file, to extract and search a past window again.<br/>
+ * The samples are addressed by their absolute position, the count of samples recorded before
+ * (same as the sample counter of {@link ExtractorThread}), so a fingerprint position in ms
+ * can be mapped back to the audio by {@link #toPosition(long)}.<br/>
+ * The file pages are managed by the OS, so the history doesn't occupy the java heap.<br/>
+ * <br/>
+ * One thread writes by {@link #put(short[], int, int)}, other threads may read concurrently.
+ */
+public class AudioHistory {
+	/** the backing file, deleted on close */
+	private final File file;
+	/** the open file */
+	private final RandomAccessFile raf;
+	/** the ring over the mapped file content */
+	private final CircularShortBuffer ring;
+	/** the sample rate of the recorded audio */
+	private final int sampleRate;
+	/** the number of channels of the recorded audio */
+	private final int channels;
+	/** the count of samples written since creation */
+	private long samplesCount = 0;
+	/** flag, if the file is closed */
+	private boolean closed = false;
+
+	/**
+	 * ctor, creates or truncates the file and maps it to memory
+	 * @param file the file to keep the audio in
+	 * @param sampleRate the sample rate of the recorded audio
+	 * @param channels the number of channels of the recorded audio
+	 * @param duration the duration of audio to keep in ms
+	 * @throws IOException if the file can't be created or mapped
+	 */
+	public AudioHistory( File file, int sampleRate, int channels, int duration ) throws IOException
+	{
+		super();
+		if( sampleRate <= 0 || channels <= 0 || duration <= 0 )
+			throw new IllegalArgumentException( "invalid format " + sampleRate + "Hz " + channels + "ch " + duration + "ms" );
+
+		this.file = file;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+
+		final long size = (long)sampleRate * channels * duration / 1000;
+		if( size > Integer.MAX_VALUE / 2 )
+			throw new IllegalArgumentException( "duration too long: " + duration + "ms" );
+
+		raf = new RandomAccessFile( file, "rw" );
+		try
+		{
+			raf.setLength( size * 2 );
+			MappedByteBuffer mapped = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size * 2 );
+			mapped.order( ByteOrder.nativeOrder() );
+			ring = new CircularShortBuffer( mapped.asShortBuffer() );
+		}
+		catch( IOException e )
+		{
+			raf.close();
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * append recorded samples, the oldest samples are dropped if the history is full
+	 * @param samples the recorded samples
+	 * @param offset the start index in samples
+	 * @param length the count of samples
+	 */
+	public synchronized void put( short[] samples, int offset, int length )
+	{
+		if( closed || length <= 0 ) return;
+
+		ring.put( samples, offset, length );
+		samplesCount += length;
+	}
+
+	/**
+	 * @return the position of the oldest available sample
+	 */
+	public synchronized long getStartPosition()
+	{
+		return Math.max( 0, samplesCount - ring.getSize() );
+	}
+
+	/**
+	 * @return the position after the newest sample
+	 */
+	public synchronized long getEndPosition()
+	{
+		return samplesCount;
+	}
+
+	/**
+	 * copy a window of the history into dst
+	 * @param position the absolute position of the first sample
+	 * @param dst the destination array
+	 * @param dstOffset the start index in dst
+	 * @param length the count of samples to copy
+	 * @return the count of copied samples, less than length if the window exceeds the recorded audio
+	 * @throws IllegalArgumentException if the start of the window is no longer available
+	 */
+	public synchronized int read( long position, short[] dst, int dstOffset, int length )
+	{
+		if( closed ) throw new IllegalStateException( "history closed" );
+		if( position < getStartPosition() )
+			throw new IllegalArgumentException( "position " + position + " is no longer available, oldest: " + getStartPosition() );
+
+		final int count = (int)Math.max( 0, Math.min( length, samplesCount - position ) );
+		if( count > 0 )
+		{
+			// negative offset from the ring head, which is the end position
+			ring.read( (int)(position - samplesCount), count, dst, dstOffset );
+		}
+		return count;
+	}
+
+	/**
+	 * @param ms the time in ms since the first recorded sample
+	 * @return the sample position
+	 */
+	public long toPosition( long ms )
+	{
+		return ms * sampleRate / 1000 * channels;
+	}
+
+	/**
+	 * @param position the sample position
+	 * @return the time in ms since the first recorded sample
+	 */
+	public long toMillis( long position )
+	{
+		return position * 1000 / ( (long)sampleRate * channels );
+	}
+
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+
+	public int getChannels()
+	{
+		return channels;
+	}
+
+	/**
+	 * close and delete the file, the mapping is released by the garbage collector
+	 */
+	public synchronized void close()
+	{
+		if( closed ) return;
+		closed = true;
+
+		try
+		{
+			raf.close();
+		}
+		catch( IOException e )
+		{
+			Log.w( getClass().getName(), "closing history file failed", e );
+		}
+		if( !file.delete() )
+			Log.w( getClass().getName(), "history file not deleted: " + file );
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) mufin GmbH. All rights reserved.
+ */
+package com.mufin.android.common;
+
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+/**
+ * {@link AudioSource} implementation for the android microphone recorder
+ */
+public class AudioRecordSource implements AudioSource
+{
+	/** the requested sample rate */
+	private final int sampleRate;
+	/** the requested channel config, see {@link android.media.AudioFormat} */
+	private final int channelConfig;
+	/** the number of channels in channelConfig */
+	private final int channelCount;
+	/** the requested encoding, see {@link android.media.AudioFormat} */
+	private final int audioEncoding;
+	/** the minimum count of samples per read */
+	private final int minBufferSize;
+	
+	/** the recording buffer size */
+	private int bufferSize = -1;
+	/** the android recorder, created by open() */
+	private AudioRecord recorder = null;
+	
+	/**
+	 * ctor
+	 * @param sampleRate the sample rate
+	 * @param channelConfig the channel config, see {@link android.media.AudioFormat}
+	 * @param channelCount the number of channels in channelConfig
+	 * @param audioEncoding the encoding, see {@link android.media.AudioFormat}
+	 * @param minBufferSize the minimum count of samples per read, too small buffers result in short refresh periods
+	 */
+	public AudioRecordSource( int sampleRate, int channelConfig, int channelCount, int audioEncoding, int minBufferSize )
+	{
+		super();
+		this.sampleRate = sampleRate;
+		this.channelConfig = channelConfig;
+		this.channelCount = channelCount;
+		this.audioEncoding = audioEncoding;
+		this.minBufferSize = minBufferSize;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean open()
+	{
+        // calculate minimum audio buffer size
+        bufferSize = AudioRecord.getMinBufferSize( sampleRate, channelConfig, audioEncoding );
+        if( bufferSize < 0 )
+        {
+        	Log.e( getClass().getName(), "getMinBufferSize() failed with error " + bufferSize );
+            
+            return false;
+        }
+        // too small buffersize result in short refresh event period
+        bufferSize = Math.max( bufferSize, minBufferSize );
+        
+        Log.d( getClass().getName(), "instanciate new AudioRecord" );
+
+        // init the android audio recorder from microphone
+        recorder = new AudioRecord( MediaRecorder.AudioSource.MIC, 
+        							sampleRate,
+        							channelConfig, 
+        							audioEncoding, bufferSize * 10 );
+
+        Log.d( getClass().getName(), "samplerate " + recorder.getSampleRate() + 
+                                    " channelconfig: " + recorder.getChannelConfiguration() + 
+                                    " audioformat: " + recorder.getAudioFormat() );
+        
+        if( recorder.getState() != AudioRecord.STATE_INITIALIZED )
+        {
+            Log.e( getClass().getName(), "can't initialize audio recording." );
+            recorder.release();
+            recorder = null;
+            
+            return false;
+        }
+        return true;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getSampleRate()
+	{
+		return recorder != null ? recorder.getSampleRate() : sampleRate;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getChannelCount()
+	{
+		return recorder != null ? recorder.getChannelCount() : channelCount;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start()
+	{
+		recorder.startRecording();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read( short[] buffer, int offset, int length )
+	{
+		return recorder.read( buffer, offset, length );
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release()
+	{
+		if( recorder == null ) return;
+		
+		recorder.stop();
+		recorder.release();
+		recorder = null;
+	}
+}
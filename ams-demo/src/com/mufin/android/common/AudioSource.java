@@ -0,0 +1,53 @@
+package com.mufin.android.common;
+
+/**
+ * interface abstraction for the audio input of {@link SampleRecorder}<br/>
+ * used to feed the recorder with different sources, like the microphone, 
+ * audio files or generated signals. All methods are called from the recorder thread.
+ * <li>{@link #open()}</li>
+ * <li>{@link #start()}</li>
+ * <li>multiple {@link #read(short[], int, int)}</li>
+ * <li>{@link #release()}</li>
+ */
+public interface AudioSource
+{
+	/**
+	 * prepare the source for reading
+	 * @return true if the source is ready, false on error
+	 */
+	public boolean open();
+	
+	/**
+	 * @return the sample rate of the audio in Hz
+	 */
+	public int getSampleRate();
+	
+	/**
+	 * @return the number of interleaved channels
+	 */
+	public int getChannelCount();
+	
+	/**
+	 * @return the preferred count of samples per read, valid after {@link #open()}
+	 */
+	public int getBufferSize();
+	
+	/**
+	 * start delivering audio
+	 */
+	public void start();
+	
+	/**
+	 * read 16 bit PCM samples, blocks until samples are available.
+	 * @param buffer the destination array
+	 * @param offset the start index in buffer
+	 * @param length the maximum count of samples to read
+	 * @return the count of samples read, 0 at the end of the audio, < 0 on error
+	 */
+	public int read( short[] buffer, int offset, int length );
+	
+	/**
+	 * stop delivering audio and release all resources
+	 */
+	public void release();
+}
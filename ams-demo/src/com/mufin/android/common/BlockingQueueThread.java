@@ -1,45 +1,165 @@
 package com.mufin.android.common;
 
 import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
 
-public abstract class BlockingQueueThread extends Thread {
+/**
+ * Task loop with a queue of typed messages, which are reused by {@link #obtainMessage()} and {@link #recycleMessage(QueueMessage)}.<br/>
+ * Data messages ({@link #offerData(QueueMessage)}) may be limited by {@link #setQueueCapacity(int, OverflowPolicy)},
+ * control messages ({@link #offerControl(QueueMessage)}) are always queued without blocking.<br/>
+ * The loop ({@link #run()}) runs on the {@link TaskRuntime} executor, not on an own thread.
+ * @param <M> the message type
+ */
+public abstract class BlockingQueueThread<M extends BlockingQueueThread.QueueMessage> implements Runnable {
 
+	/** the count of free messages kept for reuse */
+	private static final int MESSAGE_POOL_SIZE = 32;
+	/** the interval to check the thread state, while a producer is blocked by {@link OverflowPolicy#block} */
+	private static final long BLOCK_CHECK_INTERVAL = 100; // ms
+	
+	/** the behaviour, if a data message is offered to a full queue */
+	public enum OverflowPolicy {
+		/** wait until the thread took a data message, or the thread ended */
+		block,
+		/** remove the oldest queued data message, the latest audio wins */
+		drop_oldest,
+		/** discard the offered message */
+		drop_newest
+	}
+	
 	/** the message queue */
-	private BlockingQueue<Bundle> queue = null; // TODO try volatile
+	private BlockingQueue<M> queue = null; // TODO try volatile
+	/** the free places for data messages, null if unbounded */
+	private Semaphore dataSlots = null;
+	/** the overflow policy of a bounded queue */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.block;
+	/** the count of data messages dropped by the overflow policy */
+	private final AtomicLong droppedCount = new AtomicLong( 0 );
+	/** the free messages */
+	private final QueueMessage[] messagePool = new QueueMessage[ MESSAGE_POOL_SIZE ];
+	/** the count of free messages */
+	private int messagePoolCount = 0;
 	
 	/** the handler class to send listener messages */
 	private Handler observer = null;
 	
 	/** flag to cancel thread loop */
 	private volatile boolean cancelled = false;
+	
+	/** the name of the executing thread, while the loop runs */
+	private final String name;
+	/** the executor of the loop, null for the default of {@link TaskRuntime} */
+	private Executor executor = null;
+	/** flag, if the loop was submitted */
+	private volatile boolean started = false;
+	/** flag, if the loop returned */
+	private volatile boolean finished = false;
 
 	protected BlockingQueueThread() {
 		super();
+		this.name = getClass().getSimpleName();
 		init();
 	}
 
 	protected BlockingQueueThread(String threadName) {
-		super(threadName);
+		super();
+		this.name = threadName;
 		init();
 	}
 	private void init()
 	{
-		queue = new LinkedBlockingQueue<Bundle>();
+		queue = new LinkedBlockingQueue<M>();
+	}
+	
+	/**
+	 * create a new, empty message, if the pool is empty
+	 * @return the message
+	 */
+	protected abstract M newMessage();
+	
+	/**
+	 * get a free message to put to the queue
+	 * @return a cleared message
+	 */
+	@SuppressWarnings("unchecked")
+	protected M obtainMessage() {
+		synchronized( messagePool ) {
+			if( messagePoolCount > 0 ) {
+				M message = (M)messagePool[ --messagePoolCount ];
+				messagePool[ messagePoolCount ] = null;
+				return message;
+			}
+		}
+		return newMessage();
+	}
+	
+	/**
+	 * return a message taken from the queue to the pool, it must not be used afterwards
+	 * @param message the message
+	 */
+	protected void recycleMessage( M message ) {
+		message.clear();
+		message.data = false;
+		synchronized( messagePool ) {
+			if( messagePoolCount < messagePool.length )
+				messagePool[ messagePoolCount++ ] = message;
+		}
+	}
+	/**
+	 * set the executor of the loop, must be called before start
+	 * @param executor the executor, or null for the default of {@link TaskRuntime}
+	 */
+	public void setExecutor( Executor executor ) {
+		if( started )
+			throw new IllegalStateException( "executor must be set before start" );
+		this.executor = executor;
 	}
+	
 	/**
 	 * execute the task
 	 * @param listener
 	 */
 	public void start(Handler observer) {
+		if( started )
+			throw new IllegalStateException( name + " already started" );
 		this.observer = observer;
 		
-		this.start();
+		started = true;
+		TaskRuntime.execute( executor, new Runnable() {
+			@Override
+			public void run() {
+				// show the task in thread dumps, pool threads are reused by other tasks
+				final Thread thread = Thread.currentThread();
+				final String threadName = thread.getName();
+				thread.setName( name );
+				try {
+					BlockingQueueThread.this.run();
+				}
+				finally {
+					finished = true;
+					thread.setName( threadName );
+				}
+			}
+		}, name );
+	}
+
+	/**
+	 * run a short job on the executor of the task, e.g. a request, which may run concurrently to the task loop
+	 * @param job the job
+	 */
+	protected void execute( Runnable job ) {
+		TaskRuntime.execute( executor, job, name + "-job" );
 	}
 
 	/**
@@ -58,8 +178,173 @@ public abstract class BlockingQueueThread extends Thread {
 		}
 	}
 
-	protected BlockingQueue<Bundle> getQueue() {
-		return queue;
+	/**
+	 * limit the count of queued data messages, must be called before start
+	 * @param capacity the maximum count of queued data messages, <= 0 for unbounded
+	 * @param policy the behaviour, if a data message is offered to a full queue
+	 */
+	public void setQueueCapacity( int capacity, OverflowPolicy policy ) {
+		if( started || !queue.isEmpty() )
+			throw new IllegalStateException( "queue capacity must be set before start" );
+		if( policy == null )
+			throw new IllegalArgumentException( "policy must not be null" );
+		
+		this.dataSlots = capacity > 0 ? new Semaphore( capacity ) : null;
+		this.overflowPolicy = policy;
+	}
+	
+	/**
+	 * queue a data message, e.g. samples or a fingerprint, according to the overflow policy
+	 * @param message the message, owned by the queue
+	 * @return false if a message was dropped, either this one or an older one
+	 */
+	protected boolean offerData( M message ) {
+		message.data = true;
+		
+		final Semaphore slots = dataSlots;
+		boolean dropped = false;
+		if( slots != null && !slots.tryAcquire() )
+		{
+			switch( overflowPolicy )
+			{
+			case drop_newest:
+				dropMessage( message );
+				return false;
+				
+			case drop_oldest:
+				while( !slots.tryAcquire() )
+				{
+					M oldest = removeOldestData();
+					if( oldest != null )
+					{
+						// the new message takes the place of the removed one
+						dropMessage( oldest );
+						dropped = true;
+						break;
+					}
+				}
+				break;
+				
+			case block:
+				try
+				{
+					while( !slots.tryAcquire( BLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS ) )
+					{
+						// nobody will take the message any more
+						if( isCancelled() || finished )
+						{
+							dropMessage( message );
+							return false;
+						}
+					}
+				}
+				catch( InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+					dropMessage( message );
+					return false;
+				}
+				break;
+			}
+		}
+		queue.offer( message );
+		return !dropped;
+	}
+	
+	/**
+	 * queue a control message, e.g. cancel, which is never blocked or dropped
+	 * @param message the message, owned by the queue
+	 */
+	protected void offerControl( M message ) {
+		message.data = false;
+		queue.offer( message );
+	}
+	
+	/**
+	 * take the next message, blocks when empty
+	 * @return the message, owned by the caller
+	 * @throws InterruptedException
+	 */
+	protected M takeMessage() throws InterruptedException {
+		return taken( queue.take() );
+	}
+	
+	/**
+	 * take the next message, if any
+	 * @return the message, owned by the caller, or null if empty
+	 */
+	protected M pollMessage() {
+		return taken( queue.poll() );
+	}
+	
+	/**
+	 * take all available messages at once, without blocking, e.g. to catch up after a stall
+	 * @param batch the list to append the messages to, owned by the caller
+	 * @param maxMessages the maximum count of messages to take
+	 * @return the count of appended messages
+	 */
+	protected int drainMessages( List<M> batch, int maxMessages ) {
+		final int count = queue.drainTo( batch, maxMessages );
+		for( int i = batch.size() - count; i < batch.size(); i++ )
+			taken( batch.get( i ) );
+		return count;
+	}
+	
+	/**
+	 * @return the count of queued messages
+	 */
+	protected int getQueueSize() {
+		return queue.size();
+	}
+	
+	/**
+	 * discard all queued messages
+	 */
+	protected void clearQueue() {
+		M message;
+		while( (message = pollMessage()) != null )
+		{
+			discardMessage( message );
+		}
+	}
+	
+	/**
+	 * called for a message, which is not processed, e.g. on cancel or overflow.<br/>
+	 * override to release resources of the message, the default recycles it
+	 * @param message the message
+	 */
+	protected void discardMessage( M message ) {
+		recycleMessage( message );
+	}
+	
+	/**
+	 * @return the count of data messages dropped by the overflow policy
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+	
+	private M taken( M message ) {
+		// free the place of a data message
+		if( message != null && message.data && dataSlots != null )
+			dataSlots.release();
+		return message;
+	}
+	
+	private M removeOldestData() {
+		for( Iterator<M> it = queue.iterator(); it.hasNext(); )
+		{
+			M message = it.next();
+			// the consumer may have taken it meanwhile
+			if( message.data && queue.remove( message ) )
+				return message;
+		}
+		return null;
+	}
+	
+	private void dropMessage( M message ) {
+		droppedCount.incrementAndGet();
+		discardMessage( message );
 	}
 
 	/**
@@ -67,7 +352,7 @@ public abstract class BlockingQueueThread extends Thread {
 	 * @return
 	 */
 	public boolean isRunning() {
-		return (!isCancelled() && isAlive());
+		return (!isCancelled() && started && !finished);
 	}
 	/**
 	 * @return the cancelled
@@ -82,6 +367,20 @@ public abstract class BlockingQueueThread extends Thread {
 		this.cancelled = cancelled;
 	}
 	
+	/**
+	 * base class of queue messages, subclasses hold the message fields
+	 */
+	protected static abstract class QueueMessage
+	{
+		/** flag, if queued by {@link BlockingQueueThread#offerData(QueueMessage)} */
+		boolean data = false;
+		
+		/**
+		 * reset all fields, before the message is reused
+		 */
+		protected abstract void clear();
+	}
+	
 	protected static class BundleObject<S> implements Serializable
 	{
 		private static final long serialVersionUID = -5386512758430150886L;
@@ -0,0 +1,248 @@
+package com.mufin.android.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.mufin.android.common.SearchTask.SearchWorker;
+import com.mufin.ears.common.IdentifyResult;
+import com.mufin.ears.common.LicenseException;
+import com.mufin.ears.xtr.Fingerprint;
+
+/**
+ * {@link SearchWorker} decorator, which answers repeated queries from a {@link ResultCache}, without a server request.<br/>
+ * The key of a query is a 64 bit hash of the serialized fingerprint ({@link FingerprintContent}).
+ * Workers of several tasks and sessions may share one cache.
+ */
+public class CachingSearchWorker implements SearchWorker {
+
+	private final SearchWorker worker;
+	private final ResultCache cache;
+
+	/**
+	 * ctor
+	 * @param worker the worker of cache misses, owned by this worker
+	 * @param cache the cache, may be shared
+	 */
+	public CachingSearchWorker( SearchWorker worker, ResultCache cache ) {
+		super();
+		this.worker = worker;
+		this.cache = cache;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int search( Fingerprint query, long queryPosition, int numResults, List<IdentifyResult> result ) throws LicenseException {
+		final byte[] content = FingerprintContent.serialize( query );
+
+		final ResultCache.CachedResult cached = cache.get( content );
+		if( cached != null ) {
+			result.addAll( cached.results );
+			return cached.searchRes;
+		}
+
+		final int searchRes = worker.search( query, queryPosition, numResults, result );
+		if( searchRes >= 0 )
+			cache.put( content, searchRes, result );
+		return searchRes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void destroy() {
+		worker.destroy();
+	}
+
+	/**
+	 * bounded LRU cache of search results with a time to live, thread safe.<br/>
+	 * Results are cached for exactly the same fingerprint content, and optionally for near duplicates:
+	 * fingerprints of the same length, whose bits differ by at most the maximum bit error rate.
+	 * Near duplicates are found by a linear scan of the cache on a miss of the exact key,
+	 * so they are only found for fingerprints aligned to the same frames, not for shifted audio.
+	 */
+	public static class ResultCache {
+		/** the default maximum count of cached results */
+		public static final int DEFAULT_CAPACITY = 128;
+		/** the default time to live of a cached result */
+		public static final long DEFAULT_TTL = 300000; // ms
+		/** the default maximum fraction of differing bits of a near duplicate */
+		public static final float DEFAULT_MAX_BIT_ERROR_RATE = 0.05f;
+
+		private final int capacity;
+		private final long ttl;
+		private final float maxBitErrorRate;
+		/** the entries by content hash, in access order */
+		private final LinkedHashMap<Long, CachedResult> entries;
+
+		private int hitCount = 0;
+		private int nearHitCount = 0;
+		private int missCount = 0;
+
+		/**
+		 * same as ResultCache(DEFAULT_CAPACITY, DEFAULT_TTL, DEFAULT_MAX_BIT_ERROR_RATE)
+		 */
+		public ResultCache() {
+			this( DEFAULT_CAPACITY, DEFAULT_TTL, DEFAULT_MAX_BIT_ERROR_RATE );
+		}
+
+		/**
+		 * ctor
+		 * @param capacity the maximum count of cached results
+		 * @param ttl the time to live of a cached result in ms, older results are never returned
+		 * @param maxBitErrorRate the maximum fraction of differing bits of a near duplicate, 0 for exact matches only
+		 */
+		public ResultCache( final int capacity, long ttl, float maxBitErrorRate ) {
+			super();
+			if( capacity <= 0 )
+				throw new IllegalArgumentException( "invalid capacity " + capacity );
+
+			this.capacity = capacity;
+			this.ttl = ttl;
+			this.maxBitErrorRate = maxBitErrorRate;
+			this.entries = new LinkedHashMap<Long, CachedResult>( capacity * 4 / 3 + 1, 0.75f, true ) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry( Map.Entry<Long, CachedResult> eldest ) {
+					return size() > ResultCache.this.capacity;
+				}
+			};
+		}
+
+		/**
+		 * @param content the serialized fingerprint
+		 * @return the cached result of the same or a near duplicate fingerprint, or null if none or expired
+		 */
+		synchronized CachedResult get( byte[] content ) {
+			final long now = System.currentTimeMillis();
+			final Long key = Long.valueOf( hash( content ) );
+
+			CachedResult entry = entries.get( key );
+			if( entry != null && now - entry.time >= ttl ) {
+				entries.remove( key );
+				entry = null;
+			}
+			if( entry != null && Arrays.equals( entry.content, content ) ) {
+				hitCount++;
+				return entry;
+			}
+
+			if( maxBitErrorRate > 0.f ) {
+				entry = findNearDuplicate( content, now );
+				if( entry != null ) {
+					nearHitCount++;
+					return entry;
+				}
+			}
+
+			missCount++;
+			return null;
+		}
+
+		/**
+		 * cache the result of a search
+		 * @param content the serialized fingerprint
+		 * @param searchRes the return value of the search
+		 * @param results the results, copied
+		 */
+		synchronized void put( byte[] content, int searchRes, List<IdentifyResult> results ) {
+			final Long key = Long.valueOf( hash( content ) );
+			entries.put( key, new CachedResult( key, content, searchRes, results ) );
+		}
+
+		/**
+		 * scan for a fingerprint of the same length with few differing bits, removes expired entries
+		 */
+		private CachedResult findNearDuplicate( byte[] content, long now ) {
+			final int maxBitErrors = (int)( maxBitErrorRate * content.length * 8 );
+			for( Iterator<CachedResult> it = entries.values().iterator(); it.hasNext(); ) {
+				CachedResult entry = it.next();
+				if( now - entry.time >= ttl ) {
+					it.remove();
+					continue;
+				}
+				if( entry.content.length != content.length )
+					continue;
+
+				int bitErrors = 0;
+				for( int i = 0; i < content.length && bitErrors <= maxBitErrors; i++ )
+					bitErrors += Integer.bitCount( ( entry.content[ i ] ^ content[ i ] ) & 0xff );
+				if( bitErrors <= maxBitErrors ) {
+					// refresh the access order, ends the iteration
+					entries.get( entry.key );
+					return entry;
+				}
+			}
+			return null;
+		}
+
+		private static long hash( byte[] content ) {
+			return FingerprintContent.hash( content, 0, content.length );
+		}
+
+		/**
+		 * remove all cached results
+		 */
+		public synchronized void clear() {
+			entries.clear();
+		}
+
+		/**
+		 * @return the count of queries answered by the same fingerprint
+		 */
+		public synchronized int getHitCount() {
+			return hitCount;
+		}
+
+		/**
+		 * @return the count of queries answered by a near duplicate fingerprint
+		 */
+		public synchronized int getNearHitCount() {
+			return nearHitCount;
+		}
+
+		/**
+		 * @return the count of queries sent to the server
+		 */
+		public synchronized int getMissCount() {
+			return missCount;
+		}
+
+		/**
+		 * log the hit rate
+		 */
+		public synchronized void logStatistics() {
+			final int total = hitCount + nearHitCount + missCount;
+			Log.i( getClass().getName(), "result cache hits: " + hitCount + " near: " + nearHitCount + " misses: " + missCount +
+										" (" + (total > 0 ? 100 * (hitCount + nearHitCount) / total : 0) + "% hit rate)" );
+		}
+
+		/**
+		 * a cached search result
+		 */
+		static final class CachedResult {
+			private final Long key;
+			private final byte[] content;
+			private final int searchRes;
+			private final ArrayList<IdentifyResult> results;
+			/** the time of the server answer */
+			private final long time = System.currentTimeMillis();
+
+			private CachedResult( Long key, byte[] content, int searchRes, List<IdentifyResult> results ) {
+				this.key = key;
+				this.content = content;
+				this.searchRes = searchRes;
+				this.results = new ArrayList<IdentifyResult>( results );
+			}
+		}
+	}
+}
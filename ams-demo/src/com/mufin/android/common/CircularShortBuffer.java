@@ -1,10 +1,16 @@
 package com.mufin.android.common;
 
-
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 public class CircularShortBuffer {
-	/** the buffer to write to */
+	/** the buffer to write to, null if backed by {@link #storage} */
 	private final short[] buffer;
+	/** the off-heap buffer to write to, null if backed by {@link #buffer} */
+	private final ShortBuffer storage;
+	/** reusable view of storage to position bulk copies, ShortBuffer has no absolute bulk access */
+	private final ShortBuffer storageView;
 	/** the size of the buffer */
 	private final int size;
 	/** the current write position */
@@ -14,9 +20,40 @@ public class CircularShortBuffer {
 		super();
 		this.size = size;
 		this.buffer = new short[size];
+		this.storage = null;
+		this.storageView = null;
+		curPos = 0;
+	}
+	
+	/**
+	 * ctor for a buffer backed by the given storage, e.g. direct or memory-mapped memory.<br/>
+	 * the whole capacity of storage is used as ring, independent of its position and limit.
+	 * @param storage the backing buffer, must not be read-only
+	 */
+	public CircularShortBuffer(ShortBuffer storage) {
+		super();
+		if(storage == null) throw new IllegalArgumentException("storage must not be null");
+		if(storage.isReadOnly()) throw new IllegalArgumentException("storage must be writable");
+		
+		this.size = storage.capacity();
+		this.buffer = null;
+		this.storage = storage.duplicate();
+		this.storage.clear();
+		this.storageView = this.storage.duplicate();
 		curPos = 0;
 	}
 	
+	/**
+	 * create a buffer backed by direct memory outside of the java heap.<br/>
+	 * use this for long buffers, to keep them out of garbage collection. 
+	 * @param size the size of the buffer
+	 * @return the new buffer
+	 */
+	public static CircularShortBuffer allocateDirect(int size) {
+		ByteBuffer bytes = ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder());
+		return new CircularShortBuffer(bytes.asShortBuffer());
+	}
+	
 	/**
 	 * put values to the buffer and set new position of the buffer head<br/>
 	 * same as put(values, 0, values.length);
@@ -50,13 +87,13 @@ public class CircularShortBuffer {
 		
 		final int head = curPos + length;
 		if(head <= size) { // values have enough space in buffer, write completely
-			System.arraycopy(values, offset, buffer, curPos, length);
+			copyFromArray(values, offset, curPos, length);
 			curPos = head;
 		} else { // wrap values, write first part at the end and second part at start
 			int tail = head % size;
 			int front = length - tail;
-			System.arraycopy(values, offset, buffer, curPos, front);
-			System.arraycopy(values, offset + front, buffer, 0, tail);
+			copyFromArray(values, offset, curPos, front);
+			copyFromArray(values, offset + front, 0, tail);
 			curPos = tail;
 		}
 	}
@@ -73,31 +110,117 @@ public class CircularShortBuffer {
 	public int getCurPos() {
 		return curPos;
 	}
+	/**
+	 * @return true if the buffer is backed by direct memory, see {@link #allocateDirect(int)}
+	 */
+	public boolean isDirect() {
+		return storage != null && storage.isDirect();
+	}
 
 	/**
 	 * unfold the circular buffer to an array with {@link #getCurPos()} as last element
 	 * @return the linear array from circular buffer 
 	 */
 	public short[] getBuffer(int offset, int length) {
-		// determine the start position in ringbuffer
-		int headPos = curPos + offset;
-		
 		short[] linear = new short[length];
+		read(offset, length, linear, 0);
+		return linear;
+	}
+	
+	/**
+	 * unfold the circular buffer into the given array, without allocating a new one.<br/>
+	 * same as {@link #getBuffer(int, int)}, but the caller owns the destination.
+	 * @param offset the start position relative to {@link #getCurPos()}, may be negative
+	 * @param length the number of samples to copy, if length > size the ring is repeated
+	 * @param dst the destination array
+	 * @param dstOffset the start index in dst
+	 */
+	public void read(int offset, int length, short[] dst, int dstOffset) {
+		if(dst == null) throw new IllegalArgumentException("dst must not be null");
+		if(length < 0 || dstOffset < 0 || dstOffset + length > dst.length) 
+			throw new IndexOutOfBoundsException("length " + length + " at " + dstOffset + " exceeds dst.length " + dst.length);
 		
-		// set offset value to correct range
-		headPos %= size;
+		// determine the start position in ringbuffer
+		final int fromPos = startPos(offset);
 		
 		// interate over ring, if length > size
-		int fromPos = headPos;
-		int toPos = 0;
+		int toPos = dstOffset;
 		int l = Math.min(length, size);
 		while(length > 0) {
-			copyIntoBuffer(linear, fromPos, l, toPos);
+			copyIntoBuffer(dst, fromPos, l, toPos);
 			toPos += l;
 			length -= l;
 			l = Math.min(length, size);
 		}
-		return linear;
+	}
+	
+	/**
+	 * unfold the circular buffer into the given buffer at its current position.<br/>
+	 * the position of dst is advanced by length.
+	 * @param offset the start position relative to {@link #getCurPos()}, may be negative
+	 * @param length the number of samples to copy, if length > size the ring is repeated
+	 * @param dst the destination buffer, must have at least length remaining
+	 */
+	public void read(int offset, int length, ShortBuffer dst) {
+		if(dst == null) throw new IllegalArgumentException("dst must not be null");
+		if(length < 0 || length > dst.remaining()) 
+			throw new IndexOutOfBoundsException("length " + length + " exceeds dst.remaining " + dst.remaining());
+		
+		final int fromPos = startPos(offset);
+		
+		int l = Math.min(length, size);
+		while(length > 0) {
+			final int headLen = size - fromPos;
+			if(l < headLen) {
+				copyToBuffer(fromPos, dst, l);
+			} else {
+				copyToBuffer(fromPos, dst, headLen);
+				copyToBuffer(0, dst, l - headLen);
+			}
+			length -= l;
+			l = Math.min(length, size);
+		}
+	}
+	
+	/**
+	 * create a reusable read-only view for {@link #getSegments(int, int, Segments)}
+	 * @return the new, empty view
+	 */
+	public Segments newSegments() {
+		if(buffer != null)
+			return new Segments(buffer, ShortBuffer.wrap(buffer));
+		return new Segments(storage, storage);
+	}
+	
+	/**
+	 * map a region of the ring to the given view without copying.<br/>
+	 * the region is split at the end of the buffer, so the view has up to two segments:
+	 * {@link Segments#head} from the start position to the end of the buffer and 
+	 * {@link Segments#tail} from index 0. The tail is empty if the region doesn't wrap.<br/>
+	 * the view reflects the live buffer, so it is only valid until the next {@link #put(short[], int, int)}.
+	 * @param offset the start position relative to {@link #getCurPos()}, may be negative
+	 * @param length the number of samples, must not exceed {@link #getSize()}
+	 * @param segments the view created by {@link #newSegments()} of this buffer
+	 * @return the given view
+	 */
+	public Segments getSegments(int offset, int length, Segments segments) {
+		if(segments == null || !segments.isViewOf(buffer != null ? buffer : storage)) throw new IllegalArgumentException("segments must be created by this buffer");
+		if(length < 0 || length > size) throw new IndexOutOfBoundsException("length " + length + " exceeds size " + size);
+		
+		final int fromPos = startPos(offset);
+		final int headLen = Math.min(length, size - fromPos);
+		
+		segments.set(fromPos, headLen, length - headLen);
+		return segments;
+	}
+	
+	/**
+	 * @param offset the offset relative to {@link #getCurPos()}
+	 * @return the index in buffer, in range [0..size)
+	 */
+	private int startPos(int offset) {
+		int pos = (curPos + offset) % size;
+		return pos < 0 ? pos + size : pos;
 	}
 	
 	/**
@@ -112,21 +235,107 @@ public class CircularShortBuffer {
 		
 		if(length < headLen) {
 			// copy the head, the head provides enough data
-			System.arraycopy(buffer, fromPos, buf, toPos, length);
+			copyToArray(fromPos, buf, toPos, length);
 		} else {
 			final int tailLen = length - headLen;
 			// copy the head
-			System.arraycopy(buffer, fromPos, buf, toPos, headLen);
+			copyToArray(fromPos, buf, toPos, headLen);
 			// copy the tail
-			System.arraycopy(buffer, 0, buf, toPos + headLen, tailLen);
+			copyToArray(0, buf, toPos + headLen, tailLen);
+		}
+	}
+	
+	private void copyFromArray(short[] src, int srcPos, int pos, int length) {
+		if(buffer != null) {
+			System.arraycopy(src, srcPos, buffer, pos, length);
+		} else {
+			storageView.limit(pos + length).position(pos);
+			storageView.put(src, srcPos, length);
+		}
+	}
+	
+	private void copyToArray(int pos, short[] dst, int dstPos, int length) {
+		if(buffer != null) {
+			System.arraycopy(buffer, pos, dst, dstPos, length);
+		} else {
+			storageView.limit(pos + length).position(pos);
+			storageView.get(dst, dstPos, length);
 		}
 	}
 	
+	private void copyToBuffer(int pos, ShortBuffer dst, int length) {
+		if(buffer != null) {
+			dst.put(buffer, pos, length);
+		} else {
+			// buffer to buffer copy, a plain memory copy if both are direct
+			storageView.limit(pos + length).position(pos);
+			dst.put(storageView);
+		}
+	}
+	
+	/**
+	 * @return the backing array
+	 * @throws UnsupportedOperationException if the buffer is not backed by an array, see {@link #isDirect()}
+	 */
 	public short[] getRawBuffer() {
+		if(buffer == null) throw new UnsupportedOperationException("buffer is not backed by an array");
 		return buffer;
 	}
 
 	public short getBufferValue(int index) {
-		return buffer[index];
+		return buffer != null ? buffer[index] : storage.get(index);
+	}
+	
+	/**
+	 * read-only view of a ring region, split into the part before and after the buffer end.<br/>
+	 * instances are reused, see {@link CircularShortBuffer#getSegments(int, int, Segments)}
+	 */
+	public static final class Segments {
+		/** the backing array or buffer of the owning buffer */
+		private final Object owner;
+		/** the region from start position to the end of the buffer */
+		private final ShortBuffer head;
+		/** the wrapped region from the start of the buffer */
+		private final ShortBuffer tail;
+		
+		private Segments(Object owner, ShortBuffer backing) {
+			this.owner = owner;
+			this.head = backing.asReadOnlyBuffer();
+			this.head.clear();
+			this.tail = head.duplicate();
+			set(0, 0, 0);
+		}
+		
+		private void set(int headPos, int headLen, int tailLen) {
+			head.limit(headPos + headLen);
+			head.position(headPos);
+			tail.limit(tailLen);
+			tail.position(0);
+		}
+		
+		private boolean isViewOf(Object buffer) {
+			return owner == buffer;
+		}
+		
+		/**
+		 * @return the first segment, position and limit mark the region
+		 */
+		public ShortBuffer head() {
+			return head;
+		}
+		
+		/**
+		 * @return the second (wrapped) segment, empty if the region doesn't wrap
+		 */
+		public ShortBuffer tail() {
+			return tail;
+		}
+		
+		/**
+		 * @return the sample count of both segments
+		 */
+		public int length() {
+			return head.remaining() + tail.remaining();
+		}
 	}
 }
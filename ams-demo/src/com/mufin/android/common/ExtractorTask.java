@@ -12,7 +12,9 @@ public interface ExtractorTask {
 		/** push samples to prepared query */
 		add_samples, 
 		/** pushing samples finished and start identification */
-		cancel;
+		cancel,
+		/** no more samples follow, end the task after extracting the queued samples */
+		finish;
 	}
 
 	/** the message listener for ExtractorThread */
@@ -31,6 +33,11 @@ public interface ExtractorTask {
 		 * @param errorCode optional error code
 		 */
 		public void onExtractorError( ExtractorTask source, String errorMessage, Integer errorCode );
+		/**
+		 * message if the samples put before {@link ExtractorTask#finish()} are extracted, no more fingerprints follow
+		 * @param source the origin of the event
+		 */
+		public void onExtractorFinished( ExtractorTask source );
 	}
 	
 	/**
@@ -39,6 +46,15 @@ public interface ExtractorTask {
 	 */
 	public void start( Listener listener );
 	
+	/**
+	 * execute the task and read the samples from a {@link SampleRing}, 
+	 * instead of samples put by {@link #putSamples(short[])}.<br/>
+	 * the cursor is owned and closed by the task.
+	 * @param listener
+	 * @param cursor the ring reader to extract from
+	 */
+	public void start( Listener listener, SampleRing.Cursor cursor );
+	
 	/**
 	 * push samples to prepared query
 	 * @param samples
@@ -46,6 +62,14 @@ public interface ExtractorTask {
 	public void putSamples( short[] samples )
 	throws IllegalStateException;
 	
+	/**
+	 * push samples to prepared query, without copying them<br/>
+	 * the ownership of the reference moves to the task, the buffer is released after extraction.
+	 * @param samples the samples, {@link SampleBuffer#retain()} them to keep a reference for the caller
+	 */
+	public void putSamples( SampleBuffer samples )
+	throws IllegalStateException;
+	
 	/**
 	 * cancel the task<br/>
 	 * finishes the current extraction and exit the task.<br/>
@@ -53,6 +77,19 @@ public interface ExtractorTask {
 	 */
 	public void cancel();
 	
+	/**
+	 * finish the task<br/>
+	 * samples put before are extracted, then the task exits and calls {@link Listener#onExtractorFinished(ExtractorTask)}.
+	 */
+	public void finish();
+	
+	/**
+	 * stop growing the fingerprints of a progression, e.g. after a confident result.<br/>
+	 * a growing fingerprint is extended to the query duration directly, instead of by steps.
+	 * a gap longer than the query duration starts the progression again.
+	 */
+	public void stopProgression();
+	
 	/**
 	 * checks the task status and returns true if the task is running and awaits events
 	 * @return true if the thread still wait for samples to extract, false otherwise
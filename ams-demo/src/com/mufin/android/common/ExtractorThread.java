@@ -1,5 +1,8 @@
 package com.mufin.android.common;
 
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
@@ -13,7 +16,7 @@ import com.mufin.ears.xtr.Fingerprint;
 
 
 public class ExtractorThread 
-extends BlockingQueueThread 
+extends BlockingQueueThread<ExtractorThread.XtrMessage> 
 implements ExtractorTask {
 
 	private volatile int sampleRate = -1;
@@ -30,17 +33,49 @@ implements ExtractorTask {
 	private volatile int queryDuration = -1;
     private volatile float overlap = 0.f;
     private volatile int overlapInFrames = -1;
+    
+	/** the reader cursor, if samples are read from a {@link SampleRing} instead of the queue */
+	private volatile SampleRing.Cursor cursor = null;
+	/** the fingerprint currently filled by the extractor */
+	private Fingerprint fingerprint = null;
+	/** the position of the first sample, see {@link #setStartPosition(long)} */
+	private volatile long startPosition = 0;
+	/** optional gate to skip silent audio, see {@link #setSilenceGate(SilenceGate)} */
+	private volatile SilenceGate silenceGate = null;
+	/** the gate state of the current samples, blocks are only pushed if open */
+	private boolean gateOpen = true;
+	/** the count of samples skipped by the gate */
+	private long gatedSamples = 0;
+	/** the count of samples put to the queue, including dropped samples */
+	private final AtomicLong putSamplesCount = new AtomicLong( 0 );
+	/** the count of samples dropped by the queue overflow policy */
+	private long droppedSamples = 0;
+	/** the duration of the first fingerprint of a progression in ms, <= 0 for fixed length fingerprints */
+	private volatile int progressionDuration = 0;
+	/** the duration added to each fingerprint of a progression in ms */
+	private volatile int progressionStep = 0;
+	/** the duration of the fingerprint currently filled in ms */
+	private int fingerprintDuration = -1;
+	/** flag, if the listener stopped the progression, see {@link #stopProgression()} */
+	private volatile boolean progressionStopped = false;
+	/** the sample count, when the silence gate closed */
+	private long gateClosedSamples = 0;
 
-	private static final String PARAM_CODE = "code";
-	private static final String PARAM_SAMPLES = "samples";
-	
 	private static final int MSG_FP_FULL = 1;
 	private static final int MSG_ERROR = 2;
+	private static final int MSG_FINISHED = 3;
 	private static final String MSG_KEY_FP = "fingerprint";
 	private static final String MSG_KEY_POS = "fingerprintPos";
 	private static final String MSG_KEY_MSG = "message";
 	private static final String MSG_KEY_MSG_CODE = "code";
 	
+	/** the duration of samples read from the ring at once in ms, see {@link SampleRecorder} period */
+	private static final int RING_CHUNK_DURATION = 600;
+	/** the maximum count of queue elements extracted in one run */
+	private static final int MAX_BATCH_SIZE = 64;
+	/** the maximum time to wait for ring samples, before checking cancel state again */
+	private static final long RING_WAIT_TIMEOUT = 200L * 1000L * 1000L; // ns
+	
 	public ExtractorThread( int queryDuration, float overlap, int sampleRate, int channels ) throws LicenseException {
 		super("ExtractorThread");
 		
@@ -71,13 +106,79 @@ implements ExtractorTask {
 	 * {@inheritDoc}
 	 */
 	@Override
+	public void start( Listener listener, SampleRing.Cursor cursor ) {
+		this.cursor = cursor;
+		start( listener );
+	}
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
 	public void cancel() {
 		setCancelled( true );
 		
-		Bundle bundle = new Bundle();
-		bundle.putSerializable( PARAM_CODE, ParamCode.cancel );
+		SampleRing.Cursor c = cursor;
+		if( c != null )
+			c.wakeUp();
+		
+		XtrMessage message = obtainMessage();
+		message.code = ParamCode.cancel;
 		
-		getQueue().offer( bundle );
+		offerControl( message );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void finish() {
+		XtrMessage message = obtainMessage();
+		message.code = ParamCode.finish;
+		
+		offerControl( message );
+	}
+	
+	/**
+	 * set the position of the first sample, if the samples don't start at the beginning of the recording,
+	 * e.g. a window from {@link AudioHistory}. must be called before start.
+	 * @param startPosition the sample count recorded before the first sample
+	 */
+	public void setStartPosition( long startPosition ) {
+		this.startPosition = startPosition;
+	}
+
+	/**
+	 * skip silent audio instead of extracting it, the sample counter continues, 
+	 * so the positions of later fingerprints stay correct.<br/>
+	 * the incomplete fingerprint is discarded when the gate closes, so a fingerprint
+	 * never contains audio from both sides of a gap. must be called before start.
+	 * @param silenceGate the gate or null to extract all samples
+	 */
+	public void setSilenceGate( SilenceGate silenceGate ) {
+		this.silenceGate = silenceGate;
+	}
+
+	/**
+	 * search short fingerprints first, for a fast first result.<br/>
+	 * the first fingerprint of the recording, and after every gap longer than the query duration, has the initial duration.
+	 * when it's full, it's sent to the listener and extended by the next frames, with each step up to the query duration.
+	 * afterwards the fingerprints have the query duration, also after {@link #stopProgression()}. must be called before start.
+	 * @param initialDuration the duration of the first fingerprint in ms, <= 0 or >= query duration for fixed length fingerprints
+	 * @param stepDuration the duration added with each step in ms
+	 */
+	public void setProgression( int initialDuration, int stepDuration ) {
+		if( initialDuration > 0 && stepDuration <= 0 )
+			throw new IllegalArgumentException( "invalid progression step " + stepDuration );
+		this.progressionDuration = initialDuration;
+		this.progressionStep = stepDuration;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void stopProgression() {
+		progressionStopped = true;
 	}
 
 	/**
@@ -86,11 +187,30 @@ implements ExtractorTask {
 	@Override
 	public void putSamples( short[] samples )
 	{
-		Bundle bundle = new Bundle();
-		bundle.putSerializable( PARAM_CODE, ParamCode.add_samples );
-		bundle.putShortArray( PARAM_SAMPLES, samples );
+		putSamples( SampleBuffer.wrap( samples ) );
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void putSamples( SampleBuffer samples )
+	{
+		XtrMessage message = obtainMessage();
+		message.code = ParamCode.add_samples;
+		message.samples = samples;
+		// the position reveals gaps of samples dropped by the overflow policy
+		message.position = putSamplesCount.getAndAdd( samples.getLength() );
 		
-		getQueue().offer( bundle );
+		offerData( message );
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected XtrMessage newMessage() {
+		return new XtrMessage();
 	}
 	
 	@Override
@@ -100,157 +220,374 @@ implements ExtractorTask {
 			return;
 		}
 
-		Fingerprint fingerprint = new Fingerprint( "0", queryDuration );
-		xtr.assign(fingerprint);
+		fingerprint = new Fingerprint( "0", queryDuration );
 		
         // get overlap in frames
         overlapInFrames = ( int ) Math.floor( overlap * fingerprint.capacity() );
+        
+        fingerprintDuration = queryDuration;
+        if( isProgressive() )
+        {
+        	fingerprintDuration = progressionDuration;
+        	fingerprint = new Fingerprint( "0", fingerprintDuration );
+        }
+		xtr.assign(fingerprint);
 
-        samplesCount = 0;
-        short[] samplesBlock = new short[ blocksize ];
-		short[] carrySamples = new short[ blocksize ];
-		int carrySamplesCount = 0;
+        samplesCount = startPosition;
+        
+        if( cursor != null )
+        	runRing();
+        else
+        	runQueue();
+		
+		clearQueue();
+		
+		if( getDroppedCount() > 0 )
+			Log.i( getClass().getName(), "queue overflow dropped " + getDroppedCount() + " buffers, " + 
+										droppedSamples * 1000 / ( sampleRate * channels ) + "ms" );
+		if( silenceGate != null )
+			Log.i( getClass().getName(), "silence gate skipped " + gatedSamples * 1000 / ( sampleRate * channels ) + "ms" );
+		
+		if( cursor != null )
+		{
+			Log.i( getClass().getName(), "ring reader closed, lost samples: " + cursor.getLostSamples() );
+			cursor.close();
+		}
 		
-		Bundle queueElement;
+		Extractor.destroy(xtr);
+		// cleanup remaining fingerprint objects by garbage collector
+		
+		Log.i( getClass().getName(), "Extractor Task ended" );
+	}
+	
+	/**
+	 * the task loop, if samples are put by {@link #putSamples(short[])}.<br/>
+	 * all queued elements are taken at once and extracted as one contiguous run, 
+	 * so the extractor catches up fast, if the queue backed up.
+	 */
+	private void runQueue() {
+		// filled across queue elements, so samples are copied once, without a carry buffer
+		final short[] samplesBlock = new short[ blocksize ];
+		int blockFill = 0;
+		// the queue position of the next sample expected
+		long nextPosition = 0;
+		
+		final ArrayList<XtrMessage> batch = new ArrayList<XtrMessage>( MAX_BATCH_SIZE );
 		running : while(!isCancelled())
 		{
 			try
 			{ // Take element from queue. Blocks when empty.
-				queueElement = getQueue().take();
+				batch.add( takeMessage() );
 			}
 			catch(InterruptedException e)
 			{
 				break running;
 			}
-
-			if(isCancelled())
-				break running;
-
-			// the param code shows the type of the queue element
-			switch((ParamCode)queueElement.getSerializable( PARAM_CODE ))
+			// everything queued meanwhile is processed in the same run
+			if( drainMessages( batch, MAX_BATCH_SIZE - 1 ) > 0 )
 			{
-				case add_samples:
-					short[] samples = queueElement.getShortArray( PARAM_SAMPLES );
-					// check the RMS of this audio and remember it for next step
-					Signal signal = new Signal();
-					SignalLevel rmsStatus = signal.amplify( samples, sampleRate );
-					if( rmsStatus == SignalLevel.TooLow ) {
-						Log.i(getClass().getName(), "Signal level too low" );
-					}/* else if(rmsStatus == SignalLevel.TooHigh) {
-						Log.i(getClass().getName(), "Signal level too high" );
-					}
-					*/
-					
-	                int numBlocks = ( samples.length + carrySamplesCount ) / blocksize;
-	                int remainBlocks = numBlocks;
-	                
-	                // processed samples counter of current sample buffer array
-	                int processedSamples = 0;
-	                // for best performance, the sample buffer should be a multiple of extractor granularity
-	        		// e.g. 
-	        		// granularity is 480 samples @ 16000Hz sampling rate
-	        		// samples length should be n * 480
-	                for( ; remainBlocks > 0; remainBlocks-- )
-	                {
-	                	// check, if some samples from previous push need to be fingerprinted
-	                	// before new samples are pushed
-	                	if( processedSamples == 0 && carrySamplesCount > 0 )
-	                	{
-	                		System.arraycopy( carrySamples, 0, samplesBlock, 0, carrySamplesCount );
-	                		int offset =  blocksize - carrySamplesCount;
-	                		System.arraycopy( samples, 0, samplesBlock, carrySamplesCount, offset );
-	                		
-	                		processedSamples += offset;
-	                		carrySamplesCount = 0;
-	                	}
-	                	else // normal samples copy block
-	                	{
-	                		System.arraycopy( samples, processedSamples, samplesBlock, 0, blocksize );
-	                		processedSamples += blocksize;
-	                	}
-	        			int returnCode = 0;
-                        try
-                        {
-	                        returnCode = xtr.push( samplesBlock );
-                        }
-                        catch( LicenseException e )
-                        {
-	        				publishError( "License error", -1 );
-                        }
+				Log.d( getClass().getName(), "catch up " + batch.size() + " queued buffers" );
+			}
 
-	        			// returnCode = 0 -> ok, frame added to fingerprint
-	        			// returnCode = 1 -> full, fingerprint filled
-	        			if( returnCode < 0 )
-	        			{
-	        				publishError( "Error while adding samples.", returnCode );
-	        				break;
-	        			}
+			for( int i = 0; i < batch.size(); i++ )
+			{
+				final XtrMessage queueElement = batch.get( i );
+				if(isCancelled())
+				{
+					discardBatch( batch, i );
+					break running;
+				}
+				
+				final ParamCode code = queueElement.code;
+				final SampleBuffer buffer = queueElement.samples;
+				final long position = queueElement.position;
+				recycleMessage( queueElement );
+				
+				// the param code shows the type of the queue element
+				switch(code)
+				{
+					case add_samples:
+						if( position > nextPosition )
+						{
+							// samples dropped by the overflow policy, continue after the gap
+							final long gap = position - nextPosition;
+							Log.d( getClass().getName(), "queue overflow, skip " + gap + " samples" );
+							samplesCount += gap + blockFill;
+							droppedSamples += gap;
+							blockFill = 0;
+							restartFingerprint( gap );
+						}
+						nextPosition = position + buffer.getLength();
 						
-	        			samplesCount += blocksize;
+						short[] samples = buffer.getSamples();
+						updateGate( samples, samples.length );
+						checkSignalLevel( samples );
 						
-	        			if( returnCode == 1 ) // ok, fingerprint is full
-	        			{
-							long fingerprintPosition = (long)(1000.f * samplesCount / ( sampleRate * channels ) - fingerprint.duration());
-							notifyFingerprintFull( fingerprint, fingerprintPosition );
-							
-	        				if( overlapInFrames > 0 )
-	        				{
-								// create next fingerprint 
-	        					Fingerprint nextFingerprint = new Fingerprint( "0", queryDuration );
-	        					
-	        					// fill with overlapping frames from current fingerprint
-	        					long queryDurationInFrames = fingerprint.capacity();
-	        					long start = queryDurationInFrames - overlapInFrames;
-	        					nextFingerprint.appendFrames( fingerprint, start, overlapInFrames );
-	        					
-	        					// assign fingerprint
-	        					fingerprint = nextFingerprint;
-	        				}
-	        				else
-	        				{
-		        				// create new fingerprint after sending to listener
-								fingerprint = new Fingerprint( "0", queryDuration );
-	        				}
-							xtr.assign( fingerprint );
+						// for best performance, the sample buffer should be a multiple of extractor granularity
+						// e.g. 
+						// granularity is 480 samples @ 16000Hz sampling rate
+						// samples length should be n * 480
+						int processedSamples = 0;
+						while( processedSamples < samples.length )
+						{
+							final int count = Math.min( blocksize - blockFill, samples.length - processedSamples );
+							System.arraycopy( samples, processedSamples, samplesBlock, blockFill, count );
+							processedSamples += count;
+							blockFill += count;
 							
-							Log.d(getClass().getName(), "fingerprint full, pushed "+(numBlocks - remainBlocks)+
-														" sample blocks, push remaining "+remainBlocks+
-														" blocks to new fingerprint" );
-	        			}
-	                }
-	                
-	                // sample buffer doesn't fit granularity block size
-	                // remember remaining samples for next sample buffer push
-	                int remainSamples = samples.length - processedSamples;
-	                if( remainSamples > 0 )
-	                {
-	                	System.arraycopy( samples, processedSamples, carrySamples, 0, remainSamples );
-	                	carrySamplesCount = remainSamples;
-	                }
-	                else
-	                {
-	                	carrySamplesCount = 0;
-	                }
-	                
-	                //Log.d(getClass().getName(), "pushed "+numBlocks+" sample blocks to fingerprint, "+remainSamples+" samples stored for next push" );
-	                
+							if( blockFill == blocksize )
+							{
+								blockFill = 0;
+								if( pushBlock( samplesBlock ) < 0 )
+								{
+									break;
+								}
+							}
+						}
+						
+						// the samples are copied to the block, the buffer can be reused by the recorder
+						buffer.release();
+						break;
+					case cancel:
+						discardBatch( batch, i + 1 );
+						clearQueue();
+						this.setCancelled( true );
+						break running;
+					case finish:
+						discardBatch( batch, i + 1 );
+						// after the fingerprints of the extracted samples
+						sendMessage( MSG_FINISHED, null );
+						break running;
+					default:
+						discardBatch( batch, i + 1 );
+						publishError( "Unknown message in queue.", null );
+						break running;
+				}
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * discard the unprocessed messages of a batch
+	 * @param batch the batch
+	 * @param from the index of the first unprocessed message
+	 */
+	private void discardBatch( ArrayList<XtrMessage> batch, int from ) {
+		for( int i = from; i < batch.size(); i++ )
+			discardMessage( batch.get( i ) );
+		batch.clear();
+	}
+	
+	/**
+	 * release the sample buffer of a message, which is not processed, and recycle the message
+	 * @param message the message taken from the queue
+	 */
+	@Override
+	protected void discardMessage( XtrMessage message ) {
+		if( message.samples != null )
+			message.samples.release();
+		recycleMessage( message );
+	}
+	
+	/**
+	 * the task loop, if samples are read from {@link #cursor}.<br/>
+	 * the recorder thread publishes to the ring directly, so there is no queue element per chunk.
+	 */
+	private void runRing() {
+		// read chunks of whole extractor blocks, so there are never samples to carry
+		int chunkBlocks = (int)( (long)sampleRate * channels * RING_CHUNK_DURATION / 1000 / blocksize );
+		final short[] chunk = new short[ blocksize * Math.max( 1, chunkBlocks ) ];
+		final short[] samplesBlock = new short[ blocksize ];
+		
+		running : while( !isCancelled() )
+		{
+			try
+			{ // wait for the next chunk, the recorder thread wakes us on publish
+				cursor.await( chunk.length, RING_WAIT_TIMEOUT );
+			}
+			catch( InterruptedException e )
+			{
+				break running;
+			}
+			
+			if( isCancelled() )
+				break running;
+			if( cursor.available() < chunk.length )
+				continue;
+			
+			final long lostSamples = cursor.getLostSamples();
+			int samplesRead = cursor.read( chunk, 0, chunk.length );
+			final long gap = cursor.getLostSamples() - lostSamples;
+			if( gap > 0 )
+			{
+				// the recorder lapped the cursor, continue after the gap
+				Log.d( getClass().getName(), "ring overrun, skip " + gap + " samples" );
+				samplesCount += gap;
+				restartFingerprint( gap );
+			}
+			updateGate( chunk, samplesRead );
+			checkSignalLevel( chunk );
+			
+			for( int processedSamples = 0; processedSamples + blocksize <= samplesRead; processedSamples += blocksize )
+			{
+				// the extractor takes whole arrays of one block only
+				System.arraycopy( chunk, processedSamples, samplesBlock, 0, blocksize );
+				if( pushBlock( samplesBlock ) < 0 )
+				{
 					break;
-				case cancel:
-					getQueue().clear();
-					this.setCancelled( true );
-					break running;
-				default:
-					publishError( "Unknown message in queue.", null );
-					break running;
+				}
 			}
 		}
+	}
+	
+	/**
+	 * measure the level of the samples, before they are amplified, and update the gate state.<br/>
+	 * the gate state applies to all blocks pushed until the next update.
+	 * @param samples the samples to check
+	 * @param length the count of samples
+	 */
+	private void updateGate( short[] samples, int length ) {
+		final SilenceGate gate = silenceGate;
+		if( gate == null ) return;
 		
-		getQueue().clear();
+		final boolean open = gate.process( samples, 0, length );
+		if( gateOpen && !open )
+		{
+			Log.d( getClass().getName(), "silence gate closed at level " + gate.getLevel() + "dB, discard incomplete fingerprint" );
+			restartFingerprint( 0 );
+			gateClosedSamples = samplesCount;
+		}
+		else if( !gateOpen && open )
+		{
+			Log.d( getClass().getName(), "silence gate opened at level " + gate.getLevel() + "dB" );
+			// nothing was extracted while closed, the length of the silence decides on the progression
+			restartFingerprint( samplesCount - gateClosedSamples );
+		}
+		gateOpen = open;
+	}
+	
+	/**
+	 * discard the incomplete fingerprint, the next fingerprint starts with the first audio after a gap
+	 * @param gapSamples the count of samples skipped
+	 */
+	private void restartFingerprint( long gapSamples ) {
+		// the audio after a gap longer than a query may be a different track, start the progression again,
+		// after a short dropout the fingerprints keep the query duration
+		if( gapSamples >= (long)queryDuration * sampleRate * channels / 1000 )
+			progressionStopped = false;
+		else
+			gapSamples = 0;
 		
-		Extractor.destroy(xtr);
-		// cleanup remaining fingerprint objects by garbage collector
+		fingerprintDuration = isProgressive() && gapSamples > 0 ? progressionDuration : queryDuration;
+		fingerprint = new Fingerprint( "0", fingerprintDuration );
+		xtr.reset();
+		xtr.assign( fingerprint );
+	}
+	
+	/**
+	 * @return true if the fingerprints start shorter than the query duration
+	 */
+	private boolean isProgressive() {
+		return progressionDuration > 0 && progressionDuration < queryDuration;
+	}
+	
+	/**
+	 * check the RMS of the audio
+	 * @param samples the samples to check
+	 */
+	private void checkSignalLevel( short[] samples ) {
+		Signal signal = new Signal();
+		SignalLevel rmsStatus = signal.amplify( samples, sampleRate );
+		if( rmsStatus == SignalLevel.TooLow ) {
+			Log.i(getClass().getName(), "Signal level too low" );
+		}/* else if(rmsStatus == SignalLevel.TooHigh) {
+			Log.i(getClass().getName(), "Signal level too high" );
+		}
+		*/
+	}
+	
+	/**
+	 * push a block of extractor granularity to the current fingerprint 
+	 * and notify the listener, if the fingerprint is full
+	 * @param samplesBlock the samples, length must be the extractor granularity
+	 * @return the extractor return code, < 0 on error, 1 if the fingerprint was full
+	 */
+	private int pushBlock( short[] samplesBlock ) {
+		if( !gateOpen )
+		{
+			// skipped, but counted for the position of the next fingerprint
+			samplesCount += blocksize;
+			gatedSamples += blocksize;
+			return 0;
+		}
 		
-		Log.i( getClass().getName(), "Extractor Task ended" );
+		if( progressionStopped && fingerprintDuration < queryDuration )
+		{
+			// confident result: skip the remaining steps, the current frames are searched at the query duration
+			Log.d( getClass().getName(), "progression stopped at " + fingerprintDuration + "ms" );
+			fingerprintDuration = queryDuration;
+			Fingerprint fullFingerprint = new Fingerprint( "0", queryDuration );
+			fullFingerprint.appendFrames( fingerprint, 0, fingerprint.getCurrentFrames() );
+			fingerprint = fullFingerprint;
+			xtr.assign( fingerprint );
+		}
+		
+		int returnCode = 0;
+        try
+        {
+            returnCode = xtr.push( samplesBlock );
+        }
+        catch( LicenseException e )
+        {
+			publishError( "License error", -1 );
+        }
+
+		// returnCode = 0 -> ok, frame added to fingerprint
+		// returnCode = 1 -> full, fingerprint filled
+		if( returnCode < 0 )
+		{
+			publishError( "Error while adding samples.", returnCode );
+			return returnCode;
+		}
+		
+		samplesCount += blocksize;
+		
+		if( returnCode == 1 ) // ok, fingerprint is full
+		{
+			long fingerprintPosition = (long)(1000.f * samplesCount / ( sampleRate * channels ) - fingerprint.duration());
+			notifyFingerprintFull( fingerprint, fingerprintPosition );
+			
+			if( fingerprintDuration < queryDuration )
+			{
+				// progression: search again with more audio, the next fingerprint starts with all frames of this one
+				fingerprintDuration = Math.min( queryDuration, fingerprintDuration + progressionStep );
+				Fingerprint grownFingerprint = new Fingerprint( "0", fingerprintDuration );
+				grownFingerprint.appendFrames( fingerprint, 0, fingerprint.getCurrentFrames() );
+				
+				fingerprint = grownFingerprint;
+			}
+			else if( overlapInFrames > 0 )
+			{
+				// create next fingerprint 
+				Fingerprint nextFingerprint = new Fingerprint( "0", queryDuration );
+				
+				// fill with overlapping frames from current fingerprint
+				long queryDurationInFrames = fingerprint.capacity();
+				long start = queryDurationInFrames - overlapInFrames;
+				nextFingerprint.appendFrames( fingerprint, start, overlapInFrames );
+				
+				// assign fingerprint
+				fingerprint = nextFingerprint;
+			}
+			else
+			{
+				// create new fingerprint after sending to listener
+				fingerprint = new Fingerprint( "0", queryDuration );
+			}
+			xtr.assign( fingerprint );
+		}
+		return returnCode;
 	}
 	
 	/**
@@ -292,6 +629,27 @@ implements ExtractorTask {
 		sendMessage( MSG_FP_FULL, bundle );
 	}
 	
+	/**
+	 * the queue message
+	 */
+	protected static final class XtrMessage extends QueueMessage
+	{
+		/** the type of the message */
+		private ParamCode code;
+		/** the samples of {@link ParamCode#add_samples}, owned by the message until taken */
+		private SampleBuffer samples;
+		/** the count of samples put before samples */
+		private long position;
+		
+		@Override
+		protected void clear()
+		{
+			code = null;
+			samples = null;
+			position = 0;
+		}
+	}
+	
 	/**
 	 * handler for listener messages
 	 */
@@ -324,6 +682,9 @@ implements ExtractorTask {
 							data.getString( MSG_KEY_MSG ),
 							errorCode == null ? null : (Integer) errorCode );
 				break;
+			case MSG_FINISHED:
+				listener.onExtractorFinished( ExtractorThread.this );
+				break;
 
 			default:
 				Log.e( getClass().getName(), "This should never happen: unknown progress message." );
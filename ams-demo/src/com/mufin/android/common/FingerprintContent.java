@@ -0,0 +1,42 @@
+package com.mufin.android.common;
+
+import java.nio.ByteBuffer;
+
+import com.mufin.ears.xtr.Fingerprint;
+import com.mufin.ears.xtr.Signature;
+
+/**
+ * helpers for the serialized content of a {@link Fingerprint}, to compare fingerprints on the device
+ */
+public final class FingerprintContent {
+
+	private FingerprintContent() {
+	}
+
+	/**
+	 * @param fingerprint the fingerprint
+	 * @return the serialized fingerprint ({@link Signature#data()})
+	 */
+	public static byte[] serialize( Fingerprint fingerprint ) {
+		ByteBuffer data = new Signature( fingerprint ).data().duplicate();
+		data.rewind();
+		byte[] content = new byte[ data.remaining() ];
+		data.get( content );
+		return content;
+	}
+
+	/**
+	 * @param content the bytes
+	 * @param offset the start index
+	 * @param length the count of bytes
+	 * @return the 64 bit FNV-1a hash of the bytes
+	 */
+	public static long hash( byte[] content, int offset, int length ) {
+		long hash = 0xcbf29ce484222325L;
+		for( int i = offset; i < offset + length; i++ ) {
+			hash ^= content[ i ] & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+}
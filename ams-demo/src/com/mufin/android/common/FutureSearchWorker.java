@@ -0,0 +1,138 @@
+package com.mufin.android.common;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+import com.mufin.android.common.SearchTask.SearchWorker;
+import com.mufin.android.common.SearchTask.SearchWorkerBuilder;
+import com.mufin.ears.common.IdentifyResult;
+import com.mufin.ears.common.LicenseException;
+import com.mufin.ears.xtr.Fingerprint;
+
+/**
+ * {@link SearchWorker}, which is built in the background, e.g. while the first query is recorded.<br/>
+ * The first search waits for the build to complete, so the session setup overlaps with the recording,
+ * instead of adding to the latency of the first query.
+ * A worker built after {@link #destroy()} is destroyed immediately.
+ */
+public class FutureSearchWorker implements SearchWorker {
+
+	private final SearchWorkerBuilder builder;
+	/** the built worker, guarded by this */
+	private SearchWorker worker = null;
+	/** the build error, guarded by this */
+	private Exception error = null;
+	/** flag, if the build completed, guarded by this */
+	private boolean done = false;
+	/** flag, if the worker was destroyed, guarded by this */
+	private boolean destroyed = false;
+	/** the time the build started */
+	private final long startTime = System.currentTimeMillis();
+
+	/**
+	 * ctor, starts the build
+	 * @param builder the builder of the worker
+	 * @param executor the executor of the build, or null for the default of {@link TaskRuntime}
+	 */
+	public FutureSearchWorker( SearchWorkerBuilder builder, Executor executor ) {
+		super();
+		this.builder = builder;
+
+		TaskRuntime.execute( executor, new Runnable() {
+			@Override
+			public void run() {
+				build();
+			}
+		}, "FutureSearchWorker" );
+	}
+
+	private void build() {
+		SearchWorker built = null;
+		Exception failure = null;
+		try {
+			built = builder.build();
+		}
+		catch( LicenseException e ) {
+			failure = e;
+		}
+		catch( RuntimeException e ) {
+			failure = e;
+		}
+
+		synchronized( this ) {
+			done = true;
+			if( !destroyed ) {
+				worker = built;
+				error = failure;
+				built = null;
+			}
+			notifyAll();
+		}
+
+		Log.d( getClass().getName(), "search worker built in " + (System.currentTimeMillis() - startTime) + "ms" );
+
+		// nobody waits for it any more
+		if( built != null )
+			built.destroy();
+	}
+
+	/**
+	 * wait for the build
+	 * @return the worker
+	 * @throws LicenseException if the build failed with a license error
+	 */
+	private SearchWorker get() throws LicenseException {
+		synchronized( this ) {
+			try {
+				while( !done && !destroyed )
+					wait();
+			}
+			catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException( "interrupted while building search worker" );
+			}
+
+			if( destroyed )
+				throw new IllegalStateException( "search worker destroyed" );
+			if( error instanceof LicenseException )
+				throw (LicenseException)error;
+			if( error != null )
+				throw (RuntimeException)error;
+			return worker;
+		}
+	}
+
+	/**
+	 * @return true, if the build completed, successfully or not
+	 */
+	public synchronized boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * {@inheritDoc}<br/>
+	 * waits for the build to complete
+	 */
+	@Override
+	public int search( Fingerprint query, long queryPosition, int numResults, List<IdentifyResult> result ) throws LicenseException {
+		return get().search( query, queryPosition, numResults, result );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void destroy() {
+		final SearchWorker built;
+		synchronized( this ) {
+			destroyed = true;
+			built = worker;
+			worker = null;
+			notifyAll();
+		}
+		if( built != null )
+			built.destroy();
+	}
+}
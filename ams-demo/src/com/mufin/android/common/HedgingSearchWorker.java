@@ -0,0 +1,372 @@
+package com.mufin.android.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.mufin.android.common.SearchTask.SearchWorker;
+import com.mufin.android.common.SearchTask.SearchWorkerBuilder;
+import com.mufin.ears.common.IdentifyResult;
+import com.mufin.ears.common.LicenseException;
+import com.mufin.ears.xtr.Fingerprint;
+
+/**
+ * {@link SearchWorker} decorator, which sends a duplicate request, if a search is slow.<br/>
+ * The search runs on the primary worker. If there is no answer after the hedge delay, the same query
+ * is sent by a second worker, e.g. a second session or another endpoint, built by the hedge builder on first use.
+ * The first successful answer is returned, the other request is abandoned and its worker is reused,
+ * after the request returned.<br/>
+ * The hedge delay is a percentile of the recent search durations, so only the slowest requests are duplicated,
+ * limited to a multiple of the median duration.
+ */
+public class HedgingSearchWorker implements SearchWorker {
+
+	/** the default percentile of the recent search durations, after which a hedge is sent */
+	public static final float DEFAULT_PERCENTILE = 0.95f;
+	/** the hedge delay, until enough search durations are known */
+	public static final long DEFAULT_INITIAL_DELAY = 1000; // ms
+	/** the maximum count of workers, a worker of an abandoned request can't be used, until the request returned */
+	private static final int MAX_LEGS = 3;
+	/** the minimum hedge delay */
+	private static final long MIN_DELAY = 50; // ms
+	/** 
+	 * the maximum hedge delay relative to the median search duration,
+	 * otherwise a burst of slow requests raises the percentile, until no hedge is sent any more 
+	 */
+	private static final int MAX_DELAY_FACTOR = 4;
+	/** the count of recent search durations */
+	private static final int LATENCY_WINDOW = 32;
+	/** the count of search durations to compute the percentile */
+	private static final int MIN_LATENCY_SAMPLES = 8;
+
+	private final float percentile;
+	private final Executor executor;
+	/** the builder of the hedge workers */
+	private final SearchWorkerBuilder hedgeBuilder;
+	/** the primary and the hedge routes, guarded by itself */
+	private final ArrayList<Leg> legs = new ArrayList<Leg>( MAX_LEGS );
+
+	/** the recent search durations, a ring, guarded by itself */
+	private final long[] latencies = new long[ LATENCY_WINDOW ];
+	/** the count of search durations, guarded by {@link #latencies} */
+	private int latencyCount = 0;
+	/** the scratch array to sort the durations, guarded by {@link #latencies} */
+	private final long[] sortedLatencies = new long[ LATENCY_WINDOW ];
+
+	private final AtomicInteger searchCount = new AtomicInteger( 0 );
+	private final AtomicInteger hedgeCount = new AtomicInteger( 0 );
+	private final AtomicInteger hedgeWinCount = new AtomicInteger( 0 );
+
+	/** flag, if the worker was destroyed, guarded by {@link #legs} */
+	private boolean destroyed = false;
+
+	/**
+	 * same as HedgingSearchWorker(primary, hedgeBuilder, DEFAULT_PERCENTILE, null)
+	 */
+	public HedgingSearchWorker( SearchWorker primary, SearchWorkerBuilder hedgeBuilder ) {
+		this( primary, hedgeBuilder, DEFAULT_PERCENTILE, null );
+	}
+
+	/**
+	 * ctor
+	 * @param primary the worker of the first request, owned by this worker
+	 * @param hedgeBuilder the builder of the worker of the duplicate request, the worker is owned by this worker
+	 * @param percentile the percentile of the recent search durations, after which a hedge is sent, interval (0..1]
+	 * @param executor the executor of the requests, or null for the default of {@link TaskRuntime}
+	 */
+	public HedgingSearchWorker( SearchWorker primary, SearchWorkerBuilder hedgeBuilder, float percentile, Executor executor ) {
+		super();
+		if( percentile <= 0.f || percentile > 1.f )
+			throw new IllegalArgumentException( "invalid percentile " + percentile );
+
+		this.percentile = percentile;
+		this.executor = executor;
+		this.hedgeBuilder = hedgeBuilder;
+		legs.add( new Leg( primary, null ) );
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int search( Fingerprint query, long queryPosition, int numResults, List<IdentifyResult> result ) throws LicenseException {
+		searchCount.incrementAndGet();
+		final Race race = new Race();
+
+		// the previous lead may still run, if the hedge won, then the hedge leads
+		Leg lead = acquireLeg();
+		if( lead == null )
+			throw new IllegalStateException( "search worker destroyed" );
+		lead.start( race, query, false, queryPosition, numResults );
+
+		final long delay = getHedgeDelay();
+		Outcome winner = race.await( delay );
+		if( winner == null ) {
+			// the hedge uses a copy, the requests must not share the native fingerprint
+			Leg hedge = acquireLeg();
+			if( hedge != null ) {
+				hedgeCount.incrementAndGet();
+				Log.d( getClass().getName(), "no answer after " + delay + "ms, send hedge" );
+				hedge.start( race, new Fingerprint( query ), true, queryPosition, numResults );
+			}
+			winner = race.await( 0 );
+		}
+
+		if( winner.leg != lead && winner.succeeded() )
+			hedgeWinCount.incrementAndGet();
+
+		if( winner.licenseError != null )
+			throw winner.licenseError;
+		if( winner.error != null )
+			throw winner.error;
+
+		result.addAll( winner.results );
+		return winner.searchRes;
+	}
+
+	/**
+	 * {@inheritDoc}<br/>
+	 * a running request destroys its worker, when it returns
+	 */
+	@Override
+	public void destroy() {
+		List<SearchWorker> idle = new ArrayList<SearchWorker>( MAX_LEGS );
+		synchronized( legs ) {
+			destroyed = true;
+			for( Leg leg : legs ) {
+				if( !leg.busy && leg.worker != null ) {
+					idle.add( leg.worker );
+					leg.worker = null;
+				}
+			}
+		}
+		for( SearchWorker worker : idle )
+			worker.destroy();
+
+		Log.i( getClass().getName(), "searches: " + searchCount.get() + " hedges fired: " + hedgeCount.get() + " won: " + hedgeWinCount.get() );
+	}
+
+	/**
+	 * @return the count of searches
+	 */
+	public int getSearchCount() {
+		return searchCount.get();
+	}
+
+	/**
+	 * @return the count of duplicate requests sent
+	 */
+	public int getHedgeCount() {
+		return hedgeCount.get();
+	}
+
+	/**
+	 * @return the count of searches answered by the duplicate request
+	 */
+	public int getHedgeWinCount() {
+		return hedgeWinCount.get();
+	}
+
+	/**
+	 * @return the current hedge delay in ms
+	 */
+	public long getHedgeDelay() {
+		synchronized( latencies ) {
+			if( latencyCount < MIN_LATENCY_SAMPLES )
+				return DEFAULT_INITIAL_DELAY;
+
+			final int count = Math.min( latencyCount, LATENCY_WINDOW );
+			System.arraycopy( latencies, 0, sortedLatencies, 0, count );
+			Arrays.sort( sortedLatencies, 0, count );
+			final int index = Math.min( count - 1, (int)Math.ceil( percentile * count ) - 1 );
+			final long median = sortedLatencies[ count / 2 ];
+			return Math.max( MIN_DELAY, Math.min( sortedLatencies[ index ], MAX_DELAY_FACTOR * median ) );
+		}
+	}
+
+	private void addLatency( long latency ) {
+		synchronized( latencies ) {
+			latencies[ latencyCount % LATENCY_WINDOW ] = latency;
+			latencyCount++;
+		}
+	}
+
+	/**
+	 * @return an idle leg, marked busy, or null if all legs are busy or destroyed
+	 */
+	private Leg acquireLeg() {
+		synchronized( legs ) {
+			if( destroyed )
+				return null;
+			for( Leg leg : legs ) {
+				if( !leg.busy ) {
+					leg.busy = true;
+					return leg;
+				}
+			}
+			if( legs.size() == MAX_LEGS )
+				return null;
+			
+			// the worker is built by the request
+			Leg leg = new Leg( null, hedgeBuilder );
+			leg.busy = true;
+			legs.add( leg );
+			return leg;
+		}
+	}
+
+	/**
+	 * the worker of one route
+	 */
+	private final class Leg {
+		/** the worker, null until built, guarded by {@link HedgingSearchWorker#legs} */
+		private SearchWorker worker;
+		/** the builder, if the worker is built on first use */
+		private final SearchWorkerBuilder builder;
+		/** flag, if a request runs, guarded by {@link HedgingSearchWorker#legs} */
+		private boolean busy = false;
+
+		private Leg( SearchWorker worker, SearchWorkerBuilder builder ) {
+			this.worker = worker;
+			this.builder = builder;
+		}
+
+		/**
+		 * run a request on the executor, the leg must be acquired
+		 * @param ownsQuery true to destroy the query after the request
+		 */
+		private void start( final Race race, final Fingerprint query, final boolean ownsQuery, final long queryPosition, final int numResults ) {
+			race.started();
+			TaskRuntime.execute( executor, new Runnable() {
+				@Override
+				public void run() {
+					Outcome outcome = new Outcome( Leg.this );
+					try {
+						final SearchWorker current = getWorker();
+						final long start = System.currentTimeMillis();
+						outcome.searchRes = current.search( query, queryPosition, numResults, outcome.results );
+						if( outcome.searchRes >= 0 )
+							addLatency( System.currentTimeMillis() - start );
+					}
+					catch( LicenseException e ) {
+						outcome.licenseError = e;
+					}
+					catch( RuntimeException e ) {
+						outcome.error = e;
+					}
+					finally {
+						if( ownsQuery )
+							Fingerprint.destroy( query );
+						release();
+					}
+					race.finish( outcome );
+				}
+			}, "HedgingSearchWorker" );
+		}
+
+		private SearchWorker getWorker() throws LicenseException {
+			SearchWorker current;
+			synchronized( legs ) {
+				current = worker;
+			}
+			if( current == null ) {
+				current = builder.build();
+				synchronized( legs ) {
+					worker = current;
+				}
+			}
+			return current;
+		}
+
+		private void release() {
+			SearchWorker destroyWorker = null;
+			synchronized( legs ) {
+				busy = false;
+				if( destroyed ) {
+					destroyWorker = worker;
+					worker = null;
+				}
+			}
+			if( destroyWorker != null )
+				destroyWorker.destroy();
+		}
+	}
+
+	/**
+	 * the answer of a leg
+	 */
+	private static final class Outcome {
+		private final Leg leg;
+		private final List<IdentifyResult> results = new ArrayList<IdentifyResult>();
+		private int searchRes = -1;
+		private LicenseException licenseError = null;
+		private RuntimeException error = null;
+
+		private Outcome( Leg leg ) {
+			this.leg = leg;
+		}
+
+		private boolean succeeded() {
+			return licenseError == null && error == null && searchRes >= 0;
+		}
+	}
+
+	/**
+	 * the requests of one search, the first successful answer wins
+	 */
+	private static final class Race {
+		private int started = 0;
+		private int finished = 0;
+		private Outcome winner = null;
+		/** the last failed answer, returned if no request succeeds */
+		private Outcome failure = null;
+
+		private synchronized void started() {
+			started++;
+		}
+
+		private synchronized void finish( Outcome outcome ) {
+			finished++;
+			if( winner != null )
+				return; // abandoned
+
+			if( outcome.succeeded() )
+				winner = outcome;
+			else
+				failure = outcome;
+			notifyAll();
+		}
+
+		/**
+		 * wait for the first successful answer, or the failure of all requests
+		 * @param timeout the maximum wait time in ms, 0 to wait until the requests returned
+		 * @return the answer, or null on timeout
+		 */
+		private synchronized Outcome await( long timeout ) {
+			final long end = System.currentTimeMillis() + timeout;
+			boolean interrupted = false;
+			while( winner == null && finished < started ) {
+				final long remaining = end - System.currentTimeMillis();
+				if( timeout > 0 && remaining <= 0 )
+					break;
+				try {
+					wait( timeout > 0 ? remaining : 0 );
+				}
+				catch( InterruptedException e ) {
+					// the request returns with its network timeout
+					interrupted = true;
+				}
+			}
+			if( interrupted )
+				Thread.currentThread().interrupt();
+
+			if( winner != null )
+				return winner;
+			return finished < started ? null : failure;
+		}
+	}
+}
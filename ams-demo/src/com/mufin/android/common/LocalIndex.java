@@ -0,0 +1,403 @@
+package com.mufin.android.common;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * read only catalog of reference tracks for searches on the device, see {@link LocalIndexSearchWorker}.<br/>
+ * The catalog is an inverted index of sub-fingerprints: the hashes of all {@link #SUB_FINGERPRINT_LENGTH} byte windows
+ * of the serialized reference fingerprints ({@link FingerprintContent}), sorted by hash. The file is memory mapped,
+ * so it opens without loading and the entries stay off the java heap.<br/>
+ * A query looks up each of its sub-fingerprints by binary search. Every hit votes for a track and the alignment
+ * of query and reference, the track with the most votes for one alignment wins.
+ * The header of each serialized fingerprint is the same in all fingerprints of a format, its windows would match every
+ * track. So the catalog records the header length, and neither references nor queries hash windows within the header.<br/>
+ * Catalogs are created by {@link Writer}.
+ * <pre>
+ * file layout, big endian:
+ * header   magic long, version int, track count int, entry count long, names offset long, fingerprint header length int, reserved int
+ * tracks   per track: name offset int, name length int, duration ms int, content length int
+ * entries  per sub-fingerprint, sorted: hash long, track int, offset int
+ * names    utf-8 track ids
+ * </pre>
+ */
+public class LocalIndex {
+
+	/** the length of a sub-fingerprint in bytes of the serialized fingerprint */
+	public static final int SUB_FINGERPRINT_LENGTH = 8;
+
+	/** "AMSIDX01" */
+	private static final long MAGIC = 0x414d534944583031L;
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = 40;
+	private static final int TRACK_SIZE = 16;
+	private static final int ENTRY_SIZE = 16;
+	/** sub-fingerprints with more entries are ignored, e.g. silence, which is similar in many tracks */
+	private static final int MAX_POSTINGS = 64;
+	/** the minimum count of votes of a match */
+	private static final int MIN_VOTES = 2;
+
+	private final ByteBuffer buffer;
+	private final int trackCount;
+	private final long entryCount;
+	private final long entriesOffset;
+	private final long namesOffset;
+	private final int fingerprintHeaderLength;
+
+	private LocalIndex( ByteBuffer buffer ) throws IOException {
+		super();
+		this.buffer = buffer;
+
+		if( buffer.capacity() < HEADER_SIZE || buffer.getLong( 0 ) != MAGIC )
+			throw new IOException( "no fingerprint catalog" );
+		if( buffer.getInt( 8 ) != VERSION )
+			throw new IOException( "unsupported catalog version " + buffer.getInt( 8 ) );
+
+		trackCount = buffer.getInt( 12 );
+		entryCount = buffer.getLong( 16 );
+		namesOffset = buffer.getLong( 24 );
+		fingerprintHeaderLength = buffer.getInt( 32 );
+		entriesOffset = HEADER_SIZE + (long)trackCount * TRACK_SIZE;
+		if( trackCount < 0 || entryCount < 0 || fingerprintHeaderLength < 0 ||
+			entriesOffset + entryCount * ENTRY_SIZE > namesOffset || namesOffset > buffer.capacity() )
+			throw new IOException( "corrupt fingerprint catalog" );
+		// a corrupt name would fail the search thread later
+		for( int track = 0; track < trackCount; track++ ) {
+			if( !isValidName( track ) )
+				throw new IOException( "corrupt fingerprint catalog, invalid name of track " + track );
+		}
+	}
+
+	/**
+	 * map a catalog file
+	 * @param file the catalog
+	 * @return the index, valid until garbage collected
+	 * @throws IOException if the file is no valid catalog
+	 */
+	public static LocalIndex open( File file ) throws IOException {
+		FileInputStream input = new FileInputStream( file );
+		try {
+			FileChannel channel = input.getChannel();
+			// the mapping stays valid after closing the channel
+			MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			return new LocalIndex( buffer );
+		}
+		finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @return the count of reference tracks
+	 */
+	public int getTrackCount() {
+		return trackCount;
+	}
+
+	/**
+	 * @return the count of sub-fingerprints of all tracks
+	 */
+	public long getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * @return the length of the header of the serialized fingerprints, which isn't searched
+	 */
+	public int getFingerprintHeaderLength() {
+		return fingerprintHeaderLength;
+	}
+
+	/**
+	 * search the serialized fingerprint of a query
+	 * @param content the serialized query
+	 * @param maxMatches the maximum count of matches
+	 * @return the matches, best first, at most one per track
+	 */
+	public List<Match> search( byte[] content, int maxMatches ) {
+		final int subFingerprints = content.length - fingerprintHeaderLength - SUB_FINGERPRINT_LENGTH + 1;
+		if( subFingerprints <= 0 || maxMatches <= 0 )
+			return Collections.emptyList();
+
+		// votes by track and alignment
+		final HashMap<Long, int[]> votes = new HashMap<Long, int[]>();
+		for( int queryOffset = fingerprintHeaderLength; queryOffset < content.length - SUB_FINGERPRINT_LENGTH + 1; queryOffset++ ) {
+			final long hash = FingerprintContent.hash( content, queryOffset, SUB_FINGERPRINT_LENGTH );
+			final long first = lowerBound( hash );
+			long end = first;
+			while( end < entryCount && end - first <= MAX_POSTINGS && getEntryHash( end ) == hash )
+				end++;
+			if( end - first > MAX_POSTINGS )
+				continue;
+
+			for( long i = first; i < end; i++ ) {
+				final long position = entriesOffset + i * ENTRY_SIZE;
+				final int track = buffer.getInt( (int)( position + 8 ) );
+				if( track < 0 || track >= trackCount )
+					continue;
+				final int alignment = buffer.getInt( (int)( position + 12 ) ) - queryOffset;
+				final Long key = Long.valueOf( ( (long)track << 32 ) | ( alignment & 0xffffffffL ) );
+				int[] count = votes.get( key );
+				if( count == null )
+					votes.put( key, count = new int[ 1 ] );
+				count[ 0 ]++;
+			}
+		}
+
+		// the best alignment of each track
+		final HashMap<Integer, Match> best = new HashMap<Integer, Match>();
+		for( java.util.Map.Entry<Long, int[]> vote : votes.entrySet() ) {
+			final int count = vote.getValue()[ 0 ];
+			if( count < MIN_VOTES )
+				continue;
+			final int track = (int)( vote.getKey().longValue() >>> 32 );
+			final int alignment = (int)vote.getKey().longValue();
+			Match match = best.get( track );
+			if( match == null || match.votes < count )
+				best.put( track, new Match( track, alignment, count, subFingerprints ) );
+		}
+
+		final ArrayList<Match> matches = new ArrayList<Match>( best.values() );
+		Collections.sort( matches, new Comparator<Match>() {
+			@Override
+			public int compare( Match a, Match b ) {
+				return b.votes - a.votes;
+			}
+		} );
+		return matches.size() > maxMatches ? matches.subList( 0, maxMatches ) : matches;
+	}
+
+	/**
+	 * @return the index of the first entry with a hash >= the given hash
+	 */
+	private long lowerBound( long hash ) {
+		long low = 0;
+		long high = entryCount;
+		while( low < high ) {
+			final long middle = ( low + high ) >>> 1;
+			if( getEntryHash( middle ) < hash )
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	private long getEntryHash( long index ) {
+		return buffer.getLong( (int)( entriesOffset + index * ENTRY_SIZE ) );
+	}
+
+	private int getTrackInt( int track, int field ) {
+		return buffer.getInt( HEADER_SIZE + track * TRACK_SIZE + field );
+	}
+
+	/**
+	 * @return true, if the name of the track is within the names of the catalog
+	 */
+	private boolean isValidName( int track ) {
+		final long nameOffset = getTrackInt( track, 0 );
+		final long nameLength = getTrackInt( track, 4 );
+		return nameOffset >= 0 && nameLength >= 0 && namesOffset + nameOffset + nameLength <= buffer.capacity();
+	}
+
+	/**
+	 * a track found by {@link LocalIndex#search(byte[], int)}
+	 */
+	public final class Match {
+		private final int track;
+		private final int alignment;
+		private final int votes;
+		private final int subFingerprints;
+
+		private Match( int track, int alignment, int votes, int subFingerprints ) {
+			this.track = track;
+			this.alignment = alignment;
+			this.votes = votes;
+			this.subFingerprints = subFingerprints;
+		}
+
+		/**
+		 * @return the id of the reference track
+		 */
+		public String getId() {
+			if( !isValidName( track ) )
+				throw new IllegalStateException( "corrupt fingerprint catalog, invalid name of track " + track );
+			final byte[] name = new byte[ getTrackInt( track, 4 ) ];
+			final ByteBuffer names = buffer.duplicate();
+			names.position( (int)namesOffset + getTrackInt( track, 0 ) );
+			names.get( name );
+			try {
+				return new String( name, "UTF-8" );
+			}
+			catch( UnsupportedEncodingException e ) {
+				throw new IllegalStateException( e.getMessage() );
+			}
+		}
+
+		/**
+		 * @return the fraction of matching sub-fingerprints of the query in percent
+		 */
+		public int getConfidence() {
+			return Math.min( 100, 100 * votes / subFingerprints );
+		}
+
+		/**
+		 * @return the position of the query in the reference track in ms
+		 */
+		public long getTimestamp() {
+			final int contentLength = getTrackInt( track, 12 );
+			if( contentLength <= 0 || alignment <= 0 )
+				return 0;
+			return (long)alignment * getTrackInt( track, 8 ) / contentLength;
+		}
+	}
+
+	/**
+	 * creates a catalog, e.g. on a server, from the serialized fingerprints of the reference tracks.<br/>
+	 * all entries are kept in memory until written.
+	 */
+	public static class Writer {
+		private final int fingerprintHeaderLength;
+		private final ArrayList<String> ids = new ArrayList<String>();
+		private final ArrayList<int[]> trackInfo = new ArrayList<int[]>();
+		private long[] hashes = new long[ 1024 ];
+		/** track << 32 | offset of each entry */
+		private long[] postings = new long[ 1024 ];
+		private int size = 0;
+
+		/**
+		 * ctor
+		 * @param fingerprintHeaderLength the length of the header of the serialized fingerprints in bytes,
+		 * the same for all fingerprints of a format
+		 */
+		public Writer( int fingerprintHeaderLength ) {
+			super();
+			if( fingerprintHeaderLength < 0 )
+				throw new IllegalArgumentException( "invalid header length " + fingerprintHeaderLength );
+			this.fingerprintHeaderLength = fingerprintHeaderLength;
+		}
+
+		/**
+		 * add a reference track
+		 * @param id the id of the track, returned by searches
+		 * @param fingerprints the serialized fingerprints of the track in time order
+		 * @param duration the duration of the track in ms
+		 * @return the index of the track
+		 */
+		public int addTrack( String id, List<byte[]> fingerprints, int duration ) {
+			final int track = ids.size();
+			ids.add( id );
+
+			// the offsets are positions in the concatenated fingerprints, the headers are skipped
+			int contentLength = 0;
+			for( byte[] content : fingerprints ) {
+				for( int offset = fingerprintHeaderLength; offset + SUB_FINGERPRINT_LENGTH <= content.length; offset++ ) {
+					if( size == hashes.length ) {
+						hashes = grow( hashes );
+						postings = grow( postings );
+					}
+					hashes[ size ] = FingerprintContent.hash( content, offset, SUB_FINGERPRINT_LENGTH );
+					postings[ size ] = ( (long)track << 32 ) | ( contentLength + offset );
+					size++;
+				}
+				contentLength += content.length;
+			}
+			trackInfo.add( new int[] { duration, contentLength } );
+			return track;
+		}
+
+		/**
+		 * write the catalog
+		 * @param file the catalog file
+		 * @throws IOException
+		 */
+		public void write( File file ) throws IOException {
+			sort( 0, size - 1 );
+
+			final byte[][] names = new byte[ ids.size() ][];
+			int namesLength = 0;
+			for( int i = 0; i < names.length; i++ ) {
+				names[ i ] = ids.get( i ).getBytes( "UTF-8" );
+				namesLength += names[ i ].length;
+			}
+
+			final long entriesOffset = HEADER_SIZE + (long)ids.size() * TRACK_SIZE;
+			final long namesOffset = entriesOffset + (long)size * ENTRY_SIZE;
+			final ByteBuffer out = ByteBuffer.allocate( (int)( namesOffset + namesLength ) );
+			out.putLong( MAGIC ).putInt( VERSION ).putInt( ids.size() ).putLong( size ).putLong( namesOffset );
+			out.putInt( fingerprintHeaderLength ).putInt( 0 );
+
+			int nameOffset = 0;
+			for( int i = 0; i < names.length; i++ ) {
+				out.putInt( nameOffset ).putInt( names[ i ].length ).putInt( trackInfo.get( i )[ 0 ] ).putInt( trackInfo.get( i )[ 1 ] );
+				nameOffset += names[ i ].length;
+			}
+			for( int i = 0; i < size; i++ ) {
+				out.putLong( hashes[ i ] ).putInt( (int)( postings[ i ] >>> 32 ) ).putInt( (int)postings[ i ] );
+			}
+			for( byte[] name : names )
+				out.put( name );
+
+			FileOutputStream output = new FileOutputStream( file );
+			try {
+				output.write( out.array() );
+			}
+			finally {
+				output.close();
+			}
+		}
+
+		private static long[] grow( long[] array ) {
+			long[] grown = new long[ array.length * 2 ];
+			System.arraycopy( array, 0, grown, 0, array.length );
+			return grown;
+		}
+
+		/**
+		 * sort the entries by hash, quicksort of the parallel arrays
+		 */
+		private void sort( int low, int high ) {
+			while( low < high ) {
+				final long pivot = hashes[ ( low + high ) >>> 1 ];
+				int i = low;
+				int j = high;
+				while( i <= j ) {
+					while( hashes[ i ] < pivot ) i++;
+					while( hashes[ j ] > pivot ) j--;
+					if( i <= j ) {
+						swap( i++, j-- );
+					}
+				}
+				// recurse into the smaller part, loop on the larger one
+				if( j - low < high - i ) {
+					sort( low, j );
+					low = i;
+				}
+				else {
+					sort( i, high );
+					high = j;
+				}
+			}
+		}
+
+		private void swap( int a, int b ) {
+			final long hash = hashes[ a ];
+			hashes[ a ] = hashes[ b ];
+			hashes[ b ] = hash;
+			final long posting = postings[ a ];
+			postings[ a ] = postings[ b ];
+			postings[ b ] = posting;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package com.mufin.android.common;
+
+import java.util.List;
+
+import android.util.Log;
+
+import com.mufin.android.common.SearchTask.SearchWorker;
+import com.mufin.ears.common.IdentifyResult;
+import com.mufin.ears.common.LicenseException;
+import com.mufin.ears.xtr.Fingerprint;
+
+/**
+ * {@link SearchWorker}, which searches a {@link LocalIndex} on the device, without network.<br/>
+ * The index is shared by all workers and isn't closed by {@link #destroy()}.
+ */
+public class LocalIndexSearchWorker implements SearchWorker {
+
+	private final LocalIndex index;
+
+	/**
+	 * ctor
+	 * @param index the catalog, may be shared
+	 */
+	public LocalIndexSearchWorker( LocalIndex index ) {
+		super();
+		this.index = index;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int search( Fingerprint query, long queryPosition, int numResults, List<IdentifyResult> result ) throws LicenseException {
+		final long start = System.nanoTime();
+		final List<LocalIndex.Match> matches = index.search( FingerprintContent.serialize( query ), numResults );
+		for( LocalIndex.Match match : matches )
+			result.add( new IdentifyResult( match.getId(), (short)match.getConfidence(), match.getTimestamp() ) );
+
+		Log.d( getClass().getName(), "local search: " + matches.size() + " matches in " + (System.nanoTime() - start) / 1000 + "us" );
+		return matches.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void destroy() {
+	}
+}
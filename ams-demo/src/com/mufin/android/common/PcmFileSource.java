@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) mufin GmbH. All rights reserved.
+ */
+package com.mufin.android.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import android.util.Log;
+
+/**
+ * {@link AudioSource} implementation for 16 bit PCM files, WAV or raw little endian.<br/>
+ * The file is memory-mapped and read as fast as requested, without real time pacing, 
+ * so captured audio can be replayed through the pipeline faster than real time.
+ */
+public class PcmFileSource implements AudioSource
+{
+	/** the read size */
+	private static final int BUFFER_SIZE = 4096;
+	
+	/** the audio file */
+	private final File file;
+	
+	/** the sample rate, from ctor or WAV header */
+	private int sampleRate;
+	/** the number of channels, from ctor or WAV header */
+	private int channels;
+	/** the mapped samples */
+	private ShortBuffer samples = null;
+	
+	/**
+	 * ctor for a WAV file, the format is read from the header
+	 * @param file the WAV file with 16 bit PCM data
+	 * @throws IOException if the file can't be read or is no 16 bit PCM WAV file
+	 */
+	public PcmFileSource( File file ) throws IOException
+	{
+		super();
+		this.file = file;
+		
+		ByteBuffer data = map();
+		if( !readWavHeader( data ) )
+			throw new IOException( file + " is no 16 bit PCM WAV file" );
+		samples = data.slice().order( ByteOrder.LITTLE_ENDIAN ).asShortBuffer();
+	}
+	
+	/**
+	 * ctor for a raw 16 bit little endian PCM file
+	 * @param file the raw PCM file
+	 * @param sampleRate the sample rate of the file
+	 * @param channels the number of interleaved channels
+	 * @throws IOException if the file can't be read
+	 */
+	public PcmFileSource( File file, int sampleRate, int channels ) throws IOException
+	{
+		super();
+		this.file = file;
+		this.sampleRate = sampleRate;
+		this.channels = channels;
+		
+		samples = map().asShortBuffer();
+	}
+	
+	/**
+	 * @return the file content, mapped read-only
+	 * @throws IOException
+	 */
+	private ByteBuffer map() throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			ByteBuffer data = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+			data.order( ByteOrder.LITTLE_ENDIAN );
+			return data;
+		}
+		finally
+		{
+			// the mapping stays valid after closing the file
+			raf.close();
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean open()
+	{
+		if( samples == null || sampleRate <= 0 || channels <= 0 )
+		{
+			Log.e( getClass().getName(), "invalid source " + file + ": " + sampleRate + "Hz " + channels + "ch" );
+			return false;
+		}
+		
+		Log.d( getClass().getName(), file + ": " + sampleRate + "Hz " + channels + "ch " + samples.capacity() + " samples" );
+		return true;
+	}
+	
+	/**
+	 * parse the RIFF chunks and set the position of data to the first sample
+	 * @param data the file content
+	 * @return false, if the file is no 16 bit PCM WAV file or a chunk size is invalid
+	 */
+	private boolean readWavHeader( ByteBuffer data )
+	{
+		if( data.remaining() < 12 || data.getInt( 0 ) != 0x46464952 /* RIFF */ || data.getInt( 8 ) != 0x45564157 /* WAVE */ )
+		{
+			Log.e( getClass().getName(), file + " is no WAV file" );
+			return false;
+		}
+		
+		int pos = 12;
+		boolean format = false;
+		while( pos + 8 <= data.limit() )
+		{
+			final int id = data.getInt( pos );
+			final int size = data.getInt( pos + 4 );
+			pos += 8;
+			
+			if( id == 0x61746164 ) // "data"
+			{
+				if( !format ) break;
+				
+				// streamed files have no valid size (0xffffffff), the samples go up to the end of the file
+				if( size < 0 || (long)pos + size > data.limit() )
+					Log.w( getClass().getName(), file + ": invalid data size " + (size & 0xffffffffL) + ", read to end of file" );
+				else
+					data.limit( pos + size );
+				data.position( pos );
+				return true;
+			}
+			if( size < 0 || (long)pos + size > data.limit() )
+			{
+				Log.e( getClass().getName(), file + ": invalid size " + (size & 0xffffffffL) + " of chunk at " + (pos - 8) );
+				return false;
+			}
+			
+			if( id == 0x20746d66 ) // "fmt "
+			{
+				if( size < 16 )
+				{
+					Log.e( getClass().getName(), file + ": truncated format chunk of " + size + " bytes" );
+					return false;
+				}
+				final int encoding = data.getShort( pos ) & 0xffff;
+				channels = data.getShort( pos + 2 ) & 0xffff;
+				sampleRate = data.getInt( pos + 4 );
+				final int bits = data.getShort( pos + 14 ) & 0xffff;
+				if( encoding != 1 || bits != 16 )
+				{
+					Log.e( getClass().getName(), file + ": unsupported encoding " + encoding + " with " + bits + " bits" );
+					return false;
+				}
+				format = true;
+			}
+			// chunks are word aligned
+			pos += size + (size & 1);
+		}
+		Log.e( getClass().getName(), file + ": no format or data chunk" );
+		return false;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getChannelCount()
+	{
+		return channels;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getBufferSize()
+	{
+		return BUFFER_SIZE;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start()
+	{
+		samples.rewind();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read( short[] buffer, int offset, int length )
+	{
+		final int count = Math.min( length, samples.remaining() );
+		samples.get( buffer, offset, count );
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release()
+	{
+		// the mapping is released by the garbage collector, the source can be started again
+	}
+}
@@ -0,0 +1,201 @@
+package com.mufin.android.common;
+
+import java.util.Arrays;
+
+/**
+ * Streaming sample rate converter for interleaved 16 bit PCM, by a rational factor L/M.<br/>
+ * The low-pass filter is a blackman windowed sinc, split into L phases of {@link #getTapsPerPhase()} taps,
+ * which are computed once in the ctor. Every output sample is the dot product of one phase
+ * with the newest input samples, so the cost is taps per phase multiply-adds per output sample,
+ * independent of L and M.<br/>
+ * The filter state is kept between calls, so the audio can be converted in buffers of any size.
+ * {@link #process(short[], int, int, short[], int)} doesn't allocate memory.
+ * An instance keeps the state of one stream and must only be used by one thread.
+ */
+public class PolyphaseResampler {
+	/** default filter length in samples of the lower rate */
+	public static final int DEFAULT_FILTER_LENGTH = 48;
+	/** the center of the transition band relative to the lower nyquist frequency */
+	private static final double CUTOFF = 0.88;
+
+	private final int inputRate;
+	private final int outputRate;
+	private final int channels;
+	/** the interpolation factor */
+	private final int up;
+	/** the decimation factor */
+	private final int down;
+	private final int taps;
+	/** the filter phases, phase p starts at p * taps, in order from oldest to newest input sample */
+	private final float[] coefficients;
+	/** the delay line of each channel, written twice, at pos and pos + taps, to read it without wrapping */
+	private final float[][] history;
+	/** the write position in the delay lines */
+	private int pos = 0;
+	/** the phase of the next output sample */
+	private int phase = 0;
+
+	/**
+	 * same as PolyphaseResampler(inputRate, outputRate, channels, DEFAULT_FILTER_LENGTH)
+	 */
+	public PolyphaseResampler(int inputRate, int outputRate, int channels) {
+		this(inputRate, outputRate, channels, DEFAULT_FILTER_LENGTH);
+	}
+
+	/**
+	 * ctor, computes the filter tables
+	 * @param inputRate the sample rate of the input
+	 * @param outputRate the sample rate of the output
+	 * @param channels the count of interleaved channels
+	 * @param filterLength the filter length in samples of the lower rate, longer filters give a steeper transition.
+	 * when decimating, the taps per phase are scaled by the rate ratio
+	 */
+	public PolyphaseResampler(int inputRate, int outputRate, int channels, int filterLength) {
+		super();
+		if(inputRate <= 0 || outputRate <= 0 || channels <= 0) throw new IllegalArgumentException("invalid format " + inputRate + "Hz -> " + outputRate + "Hz " + channels + "ch");
+		if(filterLength <= 0) throw new IllegalArgumentException("invalid filter length " + filterLength);
+
+		final int gcd = gcd(inputRate, outputRate);
+		this.inputRate = inputRate;
+		this.outputRate = outputRate;
+		this.channels = channels;
+		this.up = outputRate / gcd;
+		this.down = inputRate / gcd;
+		this.taps = (int)(((long)filterLength * Math.max(up, down) + up - 1) / up);
+		this.coefficients = createFilter(up, down, taps);
+		this.history = new float[channels][2 * taps];
+	}
+
+	/**
+	 * design the prototype low-pass at the interpolated rate and split it into phases
+	 */
+	private static float[] createFilter(int up, int down, int taps) {
+		final int length = up * taps;
+		// cutoff in cycles per interpolated sample, below the lower of both nyquist frequencies,
+		// so most of the transition band of the window is below the nyquist frequency
+		final double fc = CUTOFF * 0.5 / Math.max(up, down);
+		final double center = (length - 1) / 2.0;
+
+		final double[] prototype = new double[length];
+		double sum = 0;
+		for(int i = 0; i < length; i++) {
+			final double x = i - center;
+			final double sinc = x == 0 ? 2 * fc : Math.sin(2 * Math.PI * fc * x) / (Math.PI * x);
+			// blackman window
+			final double w = 0.42 - 0.5 * Math.cos(2 * Math.PI * (i + 0.5) / length) + 0.08 * Math.cos(4 * Math.PI * (i + 0.5) / length);
+			prototype[i] = sinc * w;
+			sum += prototype[i];
+		}
+
+		// unity gain for every output sample, the interpolation inserts up - 1 zeros per input sample
+		final double gain = up / sum;
+
+		// phase p uses prototype[p + k * up] for input sample x[i - k]
+		final float[] coefficients = new float[length];
+		for(int p = 0; p < up; p++) {
+			for(int k = 0; k < taps; k++) {
+				coefficients[p * taps + (taps - 1 - k)] = (float)(prototype[p + k * up] * gain);
+			}
+		}
+		return coefficients;
+	}
+
+	private static int gcd(int a, int b) {
+		while(b != 0) {
+			final int t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/**
+	 * @param inputLength the count of input samples
+	 * @return the maximum count of output samples for inputLength input samples
+	 */
+	public int getMaxOutputLength(int inputLength) {
+		final long frames = ((long)(inputLength / channels) * up + down - 1) / down + 1;
+		return (int)(frames * channels);
+	}
+
+	/**
+	 * convert samples, the output is delayed by half the filter length
+	 * @param input the input samples, interleaved
+	 * @param inputOffset the start index in input
+	 * @param inputLength the count of input samples, must be a multiple of the channel count
+	 * @param output the output array, must have room for {@link #getMaxOutputLength(int)} samples
+	 * @param outputOffset the start index in output
+	 * @return the count of output samples
+	 */
+	public int process(short[] input, int inputOffset, int inputLength, short[] output, int outputOffset) {
+		if(inputLength % channels != 0) throw new IllegalArgumentException("input length " + inputLength + " is no multiple of " + channels + " channels");
+		if(output.length - outputOffset < getMaxOutputLength(inputLength))
+			throw new IndexOutOfBoundsException("output too small for " + inputLength + " samples");
+
+		int out = outputOffset;
+		final int end = inputOffset + inputLength;
+		for(int in = inputOffset; in < end; in += channels) {
+			// append the input frame to the delay lines
+			pos = pos + 1 == taps ? 0 : pos + 1;
+			for(int c = 0; c < channels; c++) {
+				final float v = input[in + c];
+				history[c][pos] = v;
+				history[c][pos + taps] = v;
+			}
+
+			// emit all output samples between this and the next input sample
+			while(phase < up) {
+				final int coefficientOffset = phase * taps;
+				for(int c = 0; c < channels; c++) {
+					// oldest sample at pos + 1, newest at pos + taps
+					final float[] line = history[c];
+					float acc = 0;
+					for(int k = 0, h = pos + 1; k < taps; k++, h++) {
+						acc += coefficients[coefficientOffset + k] * line[h];
+					}
+					output[out++] = clip(acc);
+				}
+				phase += down;
+			}
+			phase -= up;
+		}
+		return out - outputOffset;
+	}
+
+	private static short clip(float value) {
+		final int v = Math.round(value);
+		if(v > Short.MAX_VALUE) return Short.MAX_VALUE;
+		if(v < Short.MIN_VALUE) return Short.MIN_VALUE;
+		return (short)v;
+	}
+
+	/**
+	 * clear the filter state, e.g. before converting an unrelated stream
+	 */
+	public void reset() {
+		for(int c = 0; c < channels; c++) {
+			Arrays.fill(history[c], 0.f);
+		}
+		pos = 0;
+		phase = 0;
+	}
+
+	public int getInputRate() {
+		return inputRate;
+	}
+
+	public int getOutputRate() {
+		return outputRate;
+	}
+
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return the count of filter taps per output sample
+	 */
+	public int getTapsPerPhase() {
+		return taps;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) mufin GmbH. All rights reserved.
+ */
+package com.mufin.android.common;
+
+import android.util.Log;
+
+/**
+ * {@link AudioSource} decorator, which converts the audio of another source to a different sample rate,
+ * e.g. to record at the native rate of the device and extract at {@link SampleRecorder#SAMPLE_RATE}.<br/>
+ * see {@link PolyphaseResampler}, the buffers are allocated in {@link #open()}, reading doesn't allocate memory.
+ */
+public class ResamplingSource implements AudioSource
+{
+	/** the source to convert */
+	private final AudioSource source;
+	/** the sample rate of the converted audio */
+	private final int sampleRate;
+	
+	private PolyphaseResampler resampler = null;
+	/** the buffer for samples read from the source */
+	private short[] inputBuffer = null;
+	/** the converted samples, not read yet */
+	private short[] outputBuffer = null;
+	/** the read position in outputBuffer */
+	private int outputPos = 0;
+	/** the count of samples in outputBuffer */
+	private int outputCount = 0;
+	/** the buffer size of the converted audio */
+	private int bufferSize = -1;
+	
+	/**
+	 * ctor
+	 * @param source the source to convert, released with this source
+	 * @param sampleRate the sample rate of the converted audio
+	 */
+	public ResamplingSource( AudioSource source, int sampleRate )
+	{
+		super();
+		if( source == null ) throw new IllegalArgumentException( "source must not be null" );
+		this.source = source;
+		this.sampleRate = sampleRate;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean open()
+	{
+		if( !source.open() )
+			return false;
+		
+		final int channels = source.getChannelCount();
+		resampler = new PolyphaseResampler( source.getSampleRate(), sampleRate, channels );
+		
+		// whole frames, so a read never splits a frame
+		inputBuffer = new short[ source.getBufferSize() / channels * channels ];
+		outputBuffer = new short[ resampler.getMaxOutputLength( inputBuffer.length ) ];
+		bufferSize = Math.max( channels, (int)((long)inputBuffer.length * sampleRate / source.getSampleRate()) / channels * channels );
+		
+		Log.d( getClass().getName(), "convert " + source.getSampleRate() + "Hz to " + sampleRate + "Hz, buffer size " + bufferSize );
+		return true;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getChannelCount()
+	{
+		return source.getChannelCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getBufferSize()
+	{
+		return bufferSize;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start()
+	{
+		source.start();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read( short[] buffer, int offset, int length )
+	{
+		// convert the next source buffer, when all converted samples are read
+		while( outputPos == outputCount )
+		{
+			int samplesRead = source.read( inputBuffer, 0, inputBuffer.length );
+			if( samplesRead <= 0 )
+				return samplesRead;
+			
+			// the source delivers whole frames, but be safe with partial reads
+			samplesRead -= samplesRead % resampler.getChannels();
+			outputCount = resampler.process( inputBuffer, 0, samplesRead, outputBuffer, 0 );
+			outputPos = 0;
+		}
+		
+		final int count = Math.min( length, outputCount - outputPos );
+		System.arraycopy( outputBuffer, outputPos, buffer, offset, count );
+		outputPos += count;
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release()
+	{
+		source.release();
+	}
+}
@@ -0,0 +1,79 @@
+package com.mufin.android.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted sample array, handed between threads without copying.<br/>
+ * The owner of a reference must call {@link #release()} once, when it doesn't need 
+ * the samples any more. A receiver that keeps the samples beyond the call it got them in,
+ * e.g. to queue them for another thread, must {@link #retain()} them before.
+ * After the last release, a pooled buffer is reused by its {@link SampleBufferPool}.
+ */
+public final class SampleBuffer {
+	/** the pool to return to, null if not pooled */
+	private final SampleBufferPool pool;
+	/** the samples, the array length is the sample count */
+	private final short[] samples;
+	/** the count of references, 0 if free */
+	private final AtomicInteger references = new AtomicInteger(0);
+
+	SampleBuffer(SampleBufferPool pool, short[] samples) {
+		super();
+		this.pool = pool;
+		this.samples = samples;
+	}
+
+	/**
+	 * wrap an array into a not pooled buffer, e.g. to pass samples of unknown origin
+	 * @param samples the samples
+	 * @return the buffer, owned by the caller
+	 */
+	public static SampleBuffer wrap(short[] samples) {
+		if(samples == null) throw new IllegalArgumentException("samples must not be null");
+		SampleBuffer buffer = new SampleBuffer(null, samples);
+		buffer.references.set(1);
+		return buffer;
+	}
+
+	/**
+	 * @return the samples, only valid until the reference is released
+	 */
+	public short[] getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return the sample count
+	 */
+	public int getLength() {
+		return samples.length;
+	}
+
+	/**
+	 * add a reference, each reference must be released
+	 * @return this buffer
+	 */
+	public SampleBuffer retain() {
+		if(references.getAndIncrement() <= 0) throw new IllegalStateException("buffer already released");
+		return this;
+	}
+
+	/**
+	 * remove a reference, the buffer must not be used by the caller afterwards
+	 */
+	public void release() {
+		final int remaining = references.decrementAndGet();
+		if(remaining < 0) throw new IllegalStateException("buffer released too often");
+
+		if(remaining == 0 && pool != null) {
+			pool.recycle(this);
+		}
+	}
+
+	/**
+	 * take the buffer from the pool, with one reference for the caller
+	 */
+	void acquired() {
+		references.set(1);
+	}
+}
@@ -0,0 +1,72 @@
+package com.mufin.android.common;
+
+/**
+ * Pool of {@link SampleBuffer} instances, to record without allocating new arrays for every buffer.<br/>
+ * Buffers are recycled by size, so a pool serves steady requests of the same size from 
+ * recycled buffers and only allocates for sizes it has not seen recently.
+ * The pool is thread-safe, buffers are usually acquired by the recorder thread and released by consumers.
+ */
+public class SampleBufferPool {
+	/** the free buffers */
+	private final SampleBuffer[] free;
+	/** the count of free buffers */
+	private int freeCount = 0;
+	/** the count of buffers created by the pool */
+	private int created = 0;
+
+	/**
+	 * ctor
+	 * @param maxFree the maximum count of free buffers to keep
+	 */
+	public SampleBufferPool(int maxFree) {
+		super();
+		free = new SampleBuffer[maxFree];
+	}
+
+	/**
+	 * get a free buffer of the given size or create a new one
+	 * @param length the sample count
+	 * @return the buffer with one reference, owned by the caller
+	 */
+	public SampleBuffer acquire(int length) {
+		SampleBuffer buffer = null;
+		synchronized(this) {
+			// the most recently released buffers are at the end
+			for(int i = freeCount - 1; i >= 0; i--) {
+				if(free[i].getLength() == length) {
+					buffer = free[i];
+					free[i] = free[--freeCount];
+					free[freeCount] = null;
+					break;
+				}
+			}
+			if(buffer == null) created++;
+		}
+		if(buffer == null) {
+			buffer = new SampleBuffer(this, new short[length]);
+		}
+		buffer.acquired();
+		return buffer;
+	}
+
+	/**
+	 * return a buffer after the last reference is released
+	 * @param buffer the free buffer
+	 */
+	synchronized void recycle(SampleBuffer buffer) {
+		if(freeCount < free.length) {
+			free[freeCount++] = buffer;
+		} else if(free.length > 0) {
+			// replace the oldest, the latest size is more likely requested again
+			System.arraycopy(free, 1, free, 0, free.length - 1);
+			free[free.length - 1] = buffer;
+		}
+	}
+
+	/**
+	 * @return the count of buffers created by the pool, stays constant in a steady state
+	 */
+	public synchronized int getCreatedCount() {
+		return created;
+	}
+}
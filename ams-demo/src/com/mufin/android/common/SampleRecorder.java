@@ -6,8 +6,8 @@ package com.mufin.android.common;
 import java.util.EventListener;
 
 import android.media.AudioFormat;
-import android.media.AudioRecord;
-import android.media.MediaRecorder;
+import android.media.AudioManager;
+import android.media.AudioTrack;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -28,12 +28,16 @@ public class SampleRecorder extends Thread
 
     private static final String PARAM_SAMPLE_RATE = "SAMPLE_RATE";
     private static final String PARAM_CHANNELS = "CHANNELS";
-    private static final String PARAM_SAMPLES = "SAMPLES";
-    private static final String PARAM_SAMPLES_COUNT = "SAMPLES_COUNT";
     
 	public static final int RECORDING_DURATION_UNLIMITED = -1;
+	/** hop duration to emit periods of the query duration, see {@link #setHopDuration(int)} */
+	public static final int HOP_DURATION_PERIOD = 0;
+	/** hop duration to emit every buffer as read from the recorder, see {@link #setHopDuration(int)} */
+	public static final int HOP_DURATION_READ = -1;
     // minimum recording buffer size
     public static final int MIN_BUFFER_SIZE = 2048;
+    /** the count of free buffers kept for reuse, enough for the read buffers queued in the main looper */
+    private static final int BUFFER_POOL_SIZE = 16;
     
     //http://developer.android.com/reference/android/media/AudioRecord.html#AudioRecord%28int,%20int,%20int,%20int,%20int%29
     public static final int SAMPLE_RATE; // set in static block, platform dependent
@@ -62,11 +66,33 @@ public class SampleRecorder extends Thread
 	private final int maxDuration;
     /** audio delay in ms */
     private int delayDuration;
+    /** the emission hop in ms, see {@link #setHopDuration(int)} */
+    private int hopDuration = HOP_DURATION_PERIOD;
 
     /** the handler class to send listener messages */
     private Handler observer = null;
     /** flag to cancel thread loop */
     private boolean canceled = false;
+    /** the audio input, see {@link #setAudioSource(AudioSource)} */
+    private AudioSource audioSource = null;
+    /** the sample rate of the audio source, set in init */
+    private int sampleRate = SAMPLE_RATE;
+    /** the channel count of the audio source, set in init */
+    private int channels = CHANNEL_CONFIGURATION_COUNT;
+    /** optional ring, every recorded buffer is published to, see {@link #setSampleRing(SampleRing)} */
+    private volatile SampleRing sampleRing = null;
+    /** optional history, every recorded buffer is appended to, see {@link #setHistory(AudioHistory)} */
+    private volatile AudioHistory history = null;
+    /** the buffers for read and emitted samples, released by the listener callback */
+    private final SampleBufferPool bufferPool = new SampleBufferPool( BUFFER_POOL_SIZE );
+    /** optional consumer of the emitted samples on the recorder thread, see {@link #setSampleConsumer(SampleConsumer)} */
+    private volatile SampleConsumer sampleConsumer = null;
+    /** flag to post every read buffer to the listener, see {@link #setUpdatesEnabled(boolean)} */
+    private volatile boolean updatesEnabled = true;
+    /** flag to record at the native rate and convert to {@link #SAMPLE_RATE}, see {@link #setNativeCapture(boolean)} */
+    private volatile boolean nativeCapture = false;
+    /** the count of messages posted to the listener looper, written by the recorder thread only */
+    private volatile int messageCount = 0;
     
     static {
         if(Build.PRODUCT.contains("sdk")) // product = "sdk" is emulator
@@ -105,8 +131,8 @@ public class SampleRecorder extends Thread
     {
         Log.d( getClass().getName(), "run" );
         
-        // init android audio recorder
-        final AudioRecord recorder;
+        // init audio source
+        final AudioSource recorder;
         if( (recorder = init()) == null )
         {
             sendMessage( MSG_ON_RECORDER_INIT_ERROR, null );
@@ -115,13 +141,29 @@ public class SampleRecorder extends Thread
 
         Log.d( getClass().getName(), "start recording" );
         // begin recording
-        recorder.startRecording();
+        recorder.start();
 
+        if( hopDuration == HOP_DURATION_PERIOD )
+        	recordPeriods( recorder );
+        else
+        	recordHops( recorder );
+
+        Log.d( getClass().getName(), "stop recording" );
+        recorder.release();
+
+        return;
+    }
+
+    /**
+     * the recording loop, emits the whole query duration at once
+     * @param recorder the started recorder
+     */
+    private void recordPeriods( AudioSource recorder )
+    {
         int samplesCount = 0;
         int remainSamples, readSamples, samplesRead;
         int delay = delaySamples;
         
-        final short[] readBuf = new short[ bufferSize ];
 //        Log.d( getClass().getName(), "read buffer size bufferSize: " + bufferSize );
         int circularBufferSize = requiredSamples + delaySamples;
 //        Log.d( getClass().getName(), "create circular buffer circularBufferSize:" + circularBufferSize );
@@ -139,106 +181,195 @@ public class SampleRecorder extends Thread
             {
                 readSamples = remainSamples < bufferSize ? remainSamples : bufferSize;
 
+                // every read gets its own buffer, the previous one may still be queued for the listener
+                final SampleBuffer readBuf = bufferPool.acquire( bufferSize );
+                
                 // fill sample buffer from "startSample" to "readSamples" length
                 // "startSample" will stay 0 until offset isn't reached, so samplebuffer is overwritten
-                samplesRead = recorder.read( readBuf, 0, readSamples );
+                samplesRead = recorder.read( readBuf.getSamples(), 0, readSamples );
                 
 //                Log.d( getClass().getName(), "read " + samplesRead + " samples from recorder. want to get " + readSamples + " samples. bufferSize: " + bufferSize );
                 
                 if( samplesRead < 0 )
                 {
                     Log.e( getClass().getName(), "error " + samplesRead + " while reading samples." );
+                    readBuf.release();
                     break recording;
                 }
                 if( samplesRead == 0 )
                 {
                     Log.v( getClass().getName(), "no more samples." );
+                    readBuf.release();
                     break recording;
                 }
     
                 samplesCount += samplesRead;
     
 //                Log.d( getClass().getName(), "add samples " + samplesRead + " to circular buffer" );
-                samplesBuffer.put( readBuf, 0, samplesRead );
-				//Log.d( getClass().getName(), "[time] recorder update: " + samplesRead + " samples available" );
-                publishProgressRecorderUpdate( readBuf, samplesRead );
+                samplesBuffer.put( readBuf.getSamples(), 0, samplesRead );
+                publishRead( readBuf, samplesRead );
             }
             
 			x++;
 			
             // send recorder finished a period
-            Bundle bundle = new Bundle();
 //            Log.d( getClass().getName(), "finished get buffer samplesBuffer.size: " + samplesBuffer.getSize() + " delaySamples: " + delaySamples + " diff: " + (samplesBuffer.getSize() - delaySamples) );
-            bundle.putShortArray( PARAM_SAMPLES, samplesBuffer.getBuffer(0, samplesBuffer.getSize() - delaySamples) );
+            final SampleBuffer period = bufferPool.acquire( samplesBuffer.getSize() - delaySamples );
+            samplesBuffer.read( 0, period.getLength(), period.getSamples(), 0 );
 			if(x < tries)
-				sendMessage( MSG_ON_RECORDED, bundle );
+				emitSamples( MSG_ON_RECORDED, period, period.getLength() );
 			else
-				sendMessage( MSG_ON_RECORDER_FINISHED, bundle );
+				emitSamples( MSG_ON_RECORDER_FINISHED, period, period.getLength() );
 			Log.d( getClass().getName(), "recording x: "+x+" tries:"+tries );
 
             samplesCount = delay = 0;
         } while( !canceled && x < tries ); // next iteration if continuous mode on
+    }
 
-        Log.d( getClass().getName(), "stop recording" );
-        recorder.stop();
-        recorder.release();
+    /**
+     * the streaming loop, emits a hop as soon as it is read.<br/>
+     * the delay is an offset of the emit position behind the read position,
+     * so only the first hop waits for the delay.
+     * @param recorder the started recorder
+     */
+    private void recordHops( AudioSource recorder )
+    {
+        final int hopSamples = hopDuration == HOP_DURATION_READ ? 0 : 
+        						(int)(sampleRate * ((float)hopDuration / 1000f)) * channels;
+        // the same total duration as the period mode
+        final long maxSamples = (long)requiredSamples * tries;
+        
+        // the samples behind the emit position: delay, an incomplete hop and the last read
+        final CircularShortBuffer samplesBuffer = new CircularShortBuffer( delaySamples + Math.max( hopSamples, bufferSize ) + bufferSize );
+        
+        long readCount = 0;
+        long emitCount = 0;
+        
+        recording: while( !canceled && emitCount < maxSamples )
+        {
+            final SampleBuffer readBuf = bufferPool.acquire( bufferSize );
+            int samplesRead = recorder.read( readBuf.getSamples(), 0, bufferSize );
+            
+            if( samplesRead < 0 )
+            {
+                Log.e( getClass().getName(), "error " + samplesRead + " while reading samples." );
+                readBuf.release();
+                break recording;
+            }
+            if( samplesRead == 0 )
+            {
+                Log.v( getClass().getName(), "no more samples." );
+                readBuf.release();
+                break recording;
+            }
+            
+            readCount += samplesRead;
+            samplesBuffer.put( readBuf.getSamples(), 0, samplesRead );
+            publishRead( readBuf, samplesRead );
+            
+            // emit every complete hop behind the delay, or everything behind the delay if no hop size
+            long available;
+            while( !canceled && emitCount < maxSamples &&
+            		(available = readCount - delaySamples - emitCount) > 0 && available >= hopSamples )
+            {
+                int emitSamples = (int)Math.min( hopSamples > 0 ? hopSamples : available, maxSamples - emitCount );
+                
+                final SampleBuffer hop = bufferPool.acquire( emitSamples );
+                // the offset is relative to the head of the buffer, which is the read position
+                samplesBuffer.read( (int)(emitCount - readCount), emitSamples, hop.getSamples(), 0 );
+                emitCount += emitSamples;
+                
+                if( emitCount < maxSamples )
+                    emitSamples( MSG_ON_RECORDED, hop, emitSamples );
+                else
+                    emitSamples( MSG_ON_RECORDER_FINISHED, hop, emitSamples );
+            }
+        }
+        Log.d( getClass().getName(), "recorded samples: " + readCount + " emitted: " + emitCount + 
+        								" buffers created: " + bufferPool.getCreatedCount() );
+    }
 
-        return;
+    /**
+     * forward a buffer read from the recorder to ring, history and listener
+     * @param readBuf the read buffer, the ownership moves to the listener
+     * @param samplesRead the count of samples in readBuf
+     */
+    private void publishRead( SampleBuffer readBuf, int samplesRead )
+    {
+        // readers of the ring get the samples without passing the main looper
+        if( sampleRing != null )
+        	sampleRing.put( readBuf.getSamples(), 0, samplesRead );
+        if( history != null )
+        	history.put( readBuf.getSamples(), 0, samplesRead );
+		//Log.d( getClass().getName(), "[time] recorder update: " + samplesRead + " samples available" );
+        publishProgressRecorderUpdate( readBuf, samplesRead );
     }
 
-    public AudioRecord init()
+    public AudioSource init()
     {
         Log.d( getClass().getName(), "init" );
 
-        // calculate minimum audio buffer size
-        bufferSize = AudioRecord.getMinBufferSize(
-        		SAMPLE_RATE, CHANNEL_CONFIGURATION, AUDIO_ENCODING );
-        if( bufferSize < 0 )
+        // record at the native rate and convert, if supported
+        AudioSource source = null;
+        if( audioSource == null && nativeCapture )
+        	source = openNativeSource();
+        
+        if( source == null )
         {
-        	Log.e( getClass().getName(), "getMinBufferSize() failed with error " + bufferSize );
-            
-            return null;
+	        // the android audio recorder from microphone, if no other source is set
+	        source = audioSource;
+	        if( source == null )
+	        	source = new AudioRecordSource( SAMPLE_RATE, CHANNEL_CONFIGURATION, CHANNEL_CONFIGURATION_COUNT, 
+	        									AUDIO_ENCODING, MIN_BUFFER_SIZE );
+	        
+	        if( !source.open() )
+	        {
+	            Log.e( getClass().getName(), "can't initialize audio source." );
+	            
+	            return null;
+	        }
         }
+        bufferSize = source.getBufferSize();
 //        Log.d( getClass().getName(), "bufferSize " + bufferSize );
-        // too small buffersize result in short refresh event period
-        bufferSize = Math.max( bufferSize, MIN_BUFFER_SIZE );
+        
+        sampleRate = source.getSampleRate();
+        channels = source.getChannelCount();
 
         // calc needed samples from recording duration
-        requiredSamples = (int)(SAMPLE_RATE * ((float)queryDuration / 1000f));
-        delaySamples = (int)(SAMPLE_RATE * ((float)delayDuration / 1000f));
+        requiredSamples = (int)(sampleRate * ((float)queryDuration / 1000f)) * channels;
+        delaySamples = (int)(sampleRate * ((float)delayDuration / 1000f)) * channels;
         
 		tries = (int)(((float)maxDuration / (float)queryDuration) + .5f);
 		Log.d( getClass().getName(), "queryDuration: " + queryDuration + " maxDuration: " + maxDuration + " tries: " + tries );
-		
-        Log.d( getClass().getName(), "instanciate new AudioRecord" );
-
-        // init the android audio recorder from microphone
-        AudioRecord recorder = new AudioRecord( MediaRecorder.AudioSource.MIC, 
-								        		SAMPLE_RATE,
-												CHANNEL_CONFIGURATION, 
-												AUDIO_ENCODING, bufferSize * 10 );
-
-        Log.d( getClass().getName(), "samplerate " + recorder.getSampleRate() + 
-                                    " channelconfig: " + recorder.getChannelConfiguration() + 
-                                    " audioformat: " + recorder.getAudioFormat() );
         
-//        Log.d( getClass().getName(), "bufferSize after init " + AudioRecord.getMinBufferSize(
-//                                                                    recorder.getSampleRate(), 
-//                                                                    recorder.getChannelConfiguration(), 
-//                                                                    recorder.getAudioFormat()) );
+        // inform listener about init done
+        publishProgressInit( sampleRate, channels );
+
+        return source;
+    }
+    /**
+     * open the microphone at the native rate of the device, converted to {@link #SAMPLE_RATE}
+     * @return the open source, or null if the native rate is not available
+     */
+    private AudioSource openNativeSource()
+    {
+        // the input shares the rate of the output mixer on most devices
+        final int nativeRate = AudioTrack.getNativeOutputSampleRate( AudioManager.STREAM_MUSIC );
+        if( nativeRate <= 0 || nativeRate == SAMPLE_RATE )
+            return null;
         
-        if( recorder == null || recorder.getState() != AudioRecord.STATE_INITIALIZED )
+        // read the same duration per buffer as at the target rate
+        final int minBufferSize = (int)((long)MIN_BUFFER_SIZE * nativeRate / SAMPLE_RATE);
+        AudioSource source = new ResamplingSource( 
+        						new AudioRecordSource( nativeRate, CHANNEL_CONFIGURATION, CHANNEL_CONFIGURATION_COUNT, 
+        												AUDIO_ENCODING, minBufferSize ), 
+        						SAMPLE_RATE );
+        if( !source.open() )
         {
-            Log.e( getClass().getName(), "can't initialize audio recording." );
-            sendMessage( MSG_ON_RECORDER_INIT_ERROR, null );
-            
+            Log.w( getClass().getName(), "can't record at native rate " + nativeRate + "Hz, record at " + SAMPLE_RATE + "Hz" );
             return null;
         }
-        
-        // inform listener about init done
-        publishProgressInit( recorder.getSampleRate(), recorder.getChannelCount() );
-
-        return recorder;
+        return source;
     }
     /**
      * publish init message to observer/listener
@@ -255,16 +386,29 @@ public class SampleRecorder extends Thread
     }
     /**
      * publish buffer recorded message to observer/listener
-     * @param samples the sample buffer
+     * @param samples the sample buffer, the ownership moves to the listener
      * @param samplesCount the length of the filled buffer
      */
-	private void publishProgressRecorderUpdate( short[] samples, int samplesCount )
+	private void publishProgressRecorderUpdate( SampleBuffer samples, int samplesCount )
     {
-        Bundle bundle = new Bundle();
-        bundle.putShortArray( PARAM_SAMPLES, samples );
-        bundle.putInt( PARAM_SAMPLES_COUNT, samplesCount );
-
-		sendMessage( MSG_ON_RECORDER_UPDATE, bundle );
+		if( updatesEnabled )
+			sendSamples( MSG_ON_RECORDER_UPDATE, samples, samplesCount );
+		else
+			samples.release();
+    }
+    
+    /**
+     * pass emitted samples to the consumer on this thread, then to the listener
+     * @param what {@link #MSG_ON_RECORDED} or {@link #MSG_ON_RECORDER_FINISHED}
+     * @param samples the samples, the ownership moves to the listener
+     * @param samplesCount the count of valid samples
+     */
+    private void emitSamples( int what, SampleBuffer samples, int samplesCount )
+    {
+        final SampleConsumer consumer = sampleConsumer;
+        if( consumer != null )
+            consumer.onSamples( this, samples );
+        sendSamples( what, samples, samplesCount );
     }
 
     /**
@@ -278,6 +422,21 @@ public class SampleRecorder extends Thread
         if( data != null )
             message.setData( data );
         observer.sendMessage( message );
+        messageCount++;
+    }
+    
+    /**
+     * send samples to observer without a bundle, the buffer is released after the listener call
+     * @param what Value to assign to the what member. (see: {@link Message#obtain(Handler, int)})
+     * @param samples the samples, the ownership moves to the observer
+     * @param samplesCount the count of valid samples
+     */
+    private void sendSamples( int what, SampleBuffer samples, int samplesCount )
+    {
+        Message message = Message.obtain( observer, what, samplesCount, 0, samples );
+        if( !observer.sendMessage( message ) )
+            samples.release(); // looper exited, nobody will release it
+        messageCount++;
     }
     
     /**
@@ -288,6 +447,95 @@ public class SampleRecorder extends Thread
         canceled = true;
     }
     
+    /**
+     * publish every recorded buffer to the given ring, as soon as it is read from the recorder.<br/>
+     * must be set before {@link #start()}, the recorder thread is the only writer of the ring.
+     * @param sampleRing the ring or null to disable
+     */
+    public void setSampleRing( SampleRing sampleRing )
+    {
+        this.sampleRing = sampleRing;
+    }
+    
+    /**
+     * pass every emitted period or hop to the given consumer on the recorder thread, 
+     * before it is posted to the listener.<br/>
+     * use this to feed the extractor without waiting for the listener looper, 
+     * which may be busy with UI work. must be set before {@link #start()}.
+     * @param sampleConsumer the consumer or null to disable
+     */
+    public void setSampleConsumer( SampleConsumer sampleConsumer )
+    {
+        this.sampleConsumer = sampleConsumer;
+    }
+    
+    /**
+     * record the microphone at the native rate of the device and convert it to {@link #SAMPLE_RATE}
+     * by a {@link ResamplingSource}, instead of the conversion of the platform.<br/>
+     * falls back to {@link #SAMPLE_RATE}, if the native rate can't be recorded. 
+     * ignored, if an audio source is set. must be set before {@link #start()}.
+     * @param nativeCapture true to record at the native rate
+     */
+    public void setNativeCapture( boolean nativeCapture )
+    {
+        this.nativeCapture = nativeCapture;
+    }
+    
+    /**
+     * enable or disable {@link Listener#onRecorderUpdate(SampleRecorder, short[], int)} for every read buffer.<br/>
+     * disable it, if the listener doesn't use the updates, to save a looper message per buffer.
+     * @param updatesEnabled true (default) to post the updates
+     */
+    public void setUpdatesEnabled( boolean updatesEnabled )
+    {
+        this.updatesEnabled = updatesEnabled;
+    }
+    
+    /**
+     * @return the count of messages posted to the listener looper since start
+     */
+    public int getMessageCount()
+    {
+        return messageCount;
+    }
+    
+    /**
+     * read the audio from the given source instead of the microphone, 
+     * e.g. to replay audio files or generated signals faster than real time.<br/>
+     * must be set before {@link #start()}, the source is released when the recorder ends.
+     * @param audioSource the source, or null for the microphone with {@link #SAMPLE_RATE}
+     */
+    public void setAudioSource( AudioSource audioSource )
+    {
+        this.audioSource = audioSource;
+    }
+    
+    /**
+     * set the streaming mode, to forward the audio to the listener as soon as it is read.<br/>
+     * with {@link #HOP_DURATION_PERIOD} (default) the recorder waits for query duration + delay
+     * and emits the whole period. Otherwise the audio is emitted in hops of the given duration,
+     * or with {@link #HOP_DURATION_READ} every buffer as read from the recorder. The delay is kept
+     * as offset between read and emit position.<br/>
+     * must be set before {@link #start()}.
+     * @param hopDuration the hop duration in ms, {@link #HOP_DURATION_PERIOD} or {@link #HOP_DURATION_READ}
+     */
+    public void setHopDuration( int hopDuration )
+    {
+        if( hopDuration < HOP_DURATION_READ )
+            throw new IllegalArgumentException( "invalid hop duration " + hopDuration );
+        this.hopDuration = hopDuration;
+    }
+    
+    /**
+     * append every recorded buffer to the given history, to identify past audio again.<br/>
+     * must be set before {@link #start()}.
+     * @param history the history or null to disable
+     */
+    public void setHistory( AudioHistory history )
+    {
+        this.history = history;
+    }
+    
     /**
      * @return the calculated buffer size of the audio recorder
      */
@@ -306,16 +554,35 @@ public class SampleRecorder extends Thread
          * @param channels the audio recorder channel config
          */
         public void onRecorderInit( SampleRecorder source, int sampleRate, int channels );
-		/** message during sample recording to update recording status */
+		/** 
+		 * message during sample recording to update recording status<br/>
+		 * the samples array is reused after the call returns, copy it to keep the samples
+		 */
         public void onRecorderUpdate( SampleRecorder source, short[] samples, int samplesRecordedCount );
-		/** sample buffer filled and ready to identify, will be repeated until maxDuration reached */
-		public void onRecorded( SampleRecorder source, short[] samples );
+		/** 
+		 * sample buffer filled and ready to identify, will be repeated until maxDuration reached<br/>
+		 * the buffer is released after the call returns, {@link SampleBuffer#retain()} it to keep the samples
+		 */
+		public void onRecorded( SampleRecorder source, SampleBuffer samples );
 		/** alternate message to onRecorded(), if recorder reached maxDuration and will stop */
-        public void onRecorderFinished( SampleRecorder source, short[] samples );
+        public void onRecorderFinished( SampleRecorder source, SampleBuffer samples );
         /** recorder error */
         public void onRecorderInitError( SampleRecorder source );
     }
 
+    /**
+     * consumer of the emitted samples, called on the recorder thread
+     */
+    public interface SampleConsumer
+    {
+        /**
+         * samples emitted, called before the same samples are posted to {@link Listener#onRecorded(SampleRecorder, SampleBuffer)}
+         * @param source the recorder
+         * @param samples the samples, released after the call, {@link SampleBuffer#retain()} them to keep them
+         */
+        public void onSamples( SampleRecorder source, SampleBuffer samples );
+    }
+
     /**
      * handler for recorder messages
      */
@@ -331,11 +598,10 @@ public class SampleRecorder extends Thread
         @Override
         public boolean handleMessage( Message msg )
         {
-        	Bundle data = msg.getData();
-        	
             switch( msg.what )
             {
             case SampleRecorder.MSG_ON_RECORDER_INIT:
+            	Bundle data = msg.getData();
                 listener.onRecorderInit( 
                 			SampleRecorder.this, 
 	                		data.getInt( PARAM_SAMPLE_RATE ),
@@ -343,10 +609,18 @@ public class SampleRecorder extends Thread
                 break;
 
 			case SampleRecorder.MSG_ON_RECORDER_UPDATE:
-                listener.onRecorderUpdate( 
-                			SampleRecorder.this, 
-	                		data.getShortArray( PARAM_SAMPLES ),
-	                        data.getInt( PARAM_SAMPLES_COUNT ) );
+				SampleBuffer update = (SampleBuffer)msg.obj;
+				try
+				{
+	                listener.onRecorderUpdate( 
+	                			SampleRecorder.this, 
+		                		update.getSamples(),
+		                        msg.arg1 );
+				}
+				finally
+				{
+					update.release();
+				}
                 break;
 
             case SampleRecorder.MSG_ON_RECORDER_INIT_ERROR:
@@ -354,15 +628,27 @@ public class SampleRecorder extends Thread
                 break;
 
 			case SampleRecorder.MSG_ON_RECORDED:
-				listener.onRecorded( 
-							SampleRecorder.this, 
-                			data.getShortArray( PARAM_SAMPLES ) );
+				SampleBuffer recorded = (SampleBuffer)msg.obj;
+				try
+				{
+					listener.onRecorded( SampleRecorder.this, recorded );
+				}
+				finally
+				{
+					recorded.release();
+				}
 				break;
 
             case SampleRecorder.MSG_ON_RECORDER_FINISHED:
-				listener.onRecorderFinished( 
-							SampleRecorder.this, 
-                			data.getShortArray( PARAM_SAMPLES ) );
+				SampleBuffer finished = (SampleBuffer)msg.obj;
+				try
+				{
+					listener.onRecorderFinished( SampleRecorder.this, finished );
+				}
+				finally
+				{
+					finished.release();
+				}
                 break;
             }
             return false;
@@ -0,0 +1,270 @@
+package com.mufin.android.common;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single writer / multiple reader ring buffer for audio samples.<br/>
+ * Like {@link CircularShortBuffer}, but the head is a published sequence number
+ * (the total count of samples ever written) and every reader owns an independent
+ * {@link Cursor}, so the recorder thread can publish samples while the extractor and
+ * e.g. a level meter consume them at their own pace, without a queue of sample buffers.
+ * Each read copies the samples from the ring into an array of the reader.<br/>
+ * <br/>
+ * The writer and the readers copy the samples while holding the lock of the storage.
+ * A lock-free sequence check can't detect torn reads under the java memory model,
+ * the plain array accesses may be reordered around the volatile sequence accesses,
+ * so a reader, which is lapped during its copy, may get mixed samples without noticing.
+ * The lock makes the overwrite check and the copy atomic. It is held for one array copy only,
+ * never while waiting for samples, so the recorder thread is blocked for at most the copy of one read.
+ * Waiting for samples ({@link Cursor#available()}, {@link Cursor#await(int, long)}) stays lock-free.<br/>
+ * <br/>
+ * A reader that falls more than {@link #getCapacity()} samples behind is moved
+ * forward to the oldest available sample; the skipped samples are counted in
+ * {@link Cursor#getLostSamples()}.
+ */
+public class SampleRing {
+	/** the ring storage, length is a power of two */
+	private final short[] buffer;
+	/** the index mask, buffer.length - 1 */
+	private final int mask;
+	/** the count of samples published by the writer, written by writer thread only, under the lock of {@link #buffer} */
+	private volatile long writeSequence = 0;
+	/** the registered readers, copy on write */
+	private volatile Cursor[] cursors = new Cursor[0];
+
+	/**
+	 * ctor
+	 * @param minCapacity the minimum count of samples kept in the ring, rounded up to a power of two
+	 */
+	public SampleRing(int minCapacity) {
+		super();
+		if(minCapacity <= 0 || minCapacity > (1 << 30)) throw new IllegalArgumentException("invalid capacity " + minCapacity);
+
+		int capacity = Integer.highestOneBit(minCapacity);
+		if(capacity < minCapacity) capacity <<= 1;
+
+		this.buffer = new short[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * publish samples to all readers, must only be called from the writer thread
+	 * @param values the values to append to the ring
+	 * @param offset the start index in values to put
+	 * @param length the length to put
+	 */
+	public void put(short[] values, int offset, int length) {
+		if(values == null) throw new IllegalArgumentException("values must not be null");
+		if(length <= 0) return;
+
+		final long seq = writeSequence;
+
+		// more than the ring can hold, only the newest samples survive
+		if(length > buffer.length) {
+			final int skipped = length - buffer.length;
+			putWrapped(values, offset + skipped, buffer.length, seq + skipped);
+		} else {
+			putWrapped(values, offset, length, seq);
+		}
+	}
+
+	private void putWrapped(short[] values, int offset, int length, long seq) {
+		// readers never copy a region, while it is overwritten
+		synchronized(buffer) {
+			final int pos = (int)(seq & mask);
+			final int headLen = Math.min(length, buffer.length - pos);
+			System.arraycopy(values, offset, buffer, pos, headLen);
+			if(headLen < length) {
+				System.arraycopy(values, offset + headLen, buffer, 0, length - headLen);
+			}
+
+			// volatile write wakes lock-free waiters, the lock publishes the samples to the readers
+			writeSequence = seq + length;
+		}
+
+		final Cursor[] readers = cursors;
+		for(int i = 0; i < readers.length; i++) {
+			final Thread waiter = readers[i].waiter;
+			if(waiter != null) LockSupport.unpark(waiter);
+		}
+	}
+
+	/**
+	 * @return the count of samples published since creation
+	 */
+	public long getWriteSequence() {
+		return writeSequence;
+	}
+
+	/**
+	 * @return the count of samples the ring keeps
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * same as newCursor(0)
+	 * @return the new reader cursor
+	 */
+	public Cursor newCursor() {
+		return newCursor(0);
+	}
+
+	/**
+	 * create and register a reader, starting at the current write sequence.<br/>
+	 * the reader doesn't see the newest lag samples, until they are pushed out by newer samples,
+	 * so the samples are read with a delay of lag samples.
+	 * @param lag the count of samples held back from the reader, must be less than the capacity
+	 * @return the new reader cursor
+	 */
+	public synchronized Cursor newCursor(int lag) {
+		if(lag < 0 || lag >= buffer.length) throw new IllegalArgumentException("invalid lag " + lag);
+
+		Cursor cursor = new Cursor(writeSequence, lag);
+
+		Cursor[] readers = new Cursor[cursors.length + 1];
+		System.arraycopy(cursors, 0, readers, 0, cursors.length);
+		readers[cursors.length] = cursor;
+		cursors = readers;
+
+		return cursor;
+	}
+
+	private synchronized void removeCursor(Cursor cursor) {
+		final Cursor[] current = cursors;
+		for(int i = 0; i < current.length; i++) {
+			if(current[i] == cursor) {
+				Cursor[] readers = new Cursor[current.length - 1];
+				System.arraycopy(current, 0, readers, 0, i);
+				System.arraycopy(current, i + 1, readers, i, current.length - i - 1);
+				cursors = readers;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The read position of a single reader. A cursor must only be used by one thread.
+	 */
+	public final class Cursor {
+		/** the sequence of the next sample to read */
+		private long sequence;
+		/** the count of samples held back from this reader */
+		private final int lag;
+		/** the count of samples overwritten before this reader got them */
+		private long lostSamples = 0;
+		/** the thread parked in {@link #await(int, long)} */
+		private volatile Thread waiter = null;
+		/** flag to release a parked reader */
+		private volatile boolean woken = false;
+
+		private Cursor(long sequence, int lag) {
+			this.sequence = sequence;
+			this.lag = lag;
+		}
+
+		/**
+		 * @return the count of samples ready to read
+		 */
+		public int available() {
+			long available = writeSequence - lag - sequence;
+			if(available <= 0) return 0;
+			return (int)Math.min(available, buffer.length - lag);
+		}
+
+		/**
+		 * copy available samples into dst and advance the cursor
+		 * @param dst the destination array
+		 * @param offset the start index in dst
+		 * @param length the maximum count of samples to read
+		 * @return the count of samples read, 0 if nothing is available
+		 */
+		public int read(short[] dst, int offset, int length) {
+			// the writer can't lap the read region during the copy
+			synchronized(buffer) {
+				final long published = writeSequence;
+				skipOverwritten(published);
+
+				final long available = published - lag - sequence;
+				if(available <= 0) return 0;
+
+				final int n = (int)Math.min(length, available);
+				final int pos = (int)(sequence & mask);
+				final int headLen = Math.min(n, buffer.length - pos);
+				System.arraycopy(buffer, pos, dst, offset, headLen);
+				if(headLen < n) {
+					System.arraycopy(buffer, 0, dst, offset + headLen, n - headLen);
+				}
+				sequence += n;
+				return n;
+			}
+		}
+
+		/**
+		 * wait until minSamples are available, the cursor is woken or the timeout elapsed
+		 * @param minSamples the count of samples to wait for
+		 * @param timeoutNanos the maximum wait time
+		 * @return the count of available samples
+		 * @throws InterruptedException if the waiting thread was interrupted
+		 */
+		public int await(int minSamples, long timeoutNanos) throws InterruptedException {
+			final long deadline = System.nanoTime() + timeoutNanos;
+
+			int available;
+			waiter = Thread.currentThread();
+			try {
+				while((available = available()) < minSamples && !woken) {
+					final long remaining = deadline - System.nanoTime();
+					if(remaining <= 0) break;
+
+					LockSupport.parkNanos(remaining);
+
+					if(Thread.interrupted()) throw new InterruptedException();
+				}
+			} finally {
+				waiter = null;
+				woken = false;
+			}
+			return available;
+		}
+
+		/**
+		 * release a reader parked in {@link #await(int, long)}, e.g. on cancel
+		 */
+		public void wakeUp() {
+			woken = true;
+			final Thread t = waiter;
+			if(t != null) LockSupport.unpark(t);
+		}
+
+		/**
+		 * unregister the cursor from the ring, it must not be used afterwards
+		 */
+		public void close() {
+			removeCursor(this);
+		}
+
+		/**
+		 * @return the sequence of the next sample to read
+		 */
+		public long getSequence() {
+			return sequence;
+		}
+
+		/**
+		 * @return the count of samples overwritten by the writer before they were read
+		 */
+		public long getLostSamples() {
+			return lostSamples;
+		}
+
+		private void skipOverwritten(long published) {
+			final long oldest = published - buffer.length;
+			if(sequence < oldest) {
+				lostSamples += oldest - sequence;
+				sequence = oldest;
+			}
+		}
+	}
+}
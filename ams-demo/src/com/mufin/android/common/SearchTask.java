@@ -50,17 +50,25 @@ public interface SearchTask
 		/**
 		 * message if error occured during process
 		 * @param source the origin of the event
+		 * @param query the fingerprint of the failed search, or null if the error isn't caused by a search
 		 * @param errorMessage the message string
 		 * @param errorCode optional error code
 		 */
-		public void onSearchError( SearchTask source, String errorMessage, Integer errorCode );
+		public void onSearchError( SearchTask source, Fingerprint query, String errorMessage, Integer errorCode );
 		/**
 		 * message if result returned from identification process
 		 * @param source the origin of the event
+		 * @param query the searched fingerprint
 		 * @param identifyResult the result list, or null if no result
 		 * @param searchDuration the duration of the server request
 		 */
-		public void onSearchResult( SearchTask source, ArrayList<IdentifyResult> identifyResult, long searchDuration );
+		public void onSearchResult( SearchTask source, Fingerprint query, ArrayList<IdentifyResult> identifyResult, long searchDuration );
+		/**
+		 * message if a queued fingerprint was dropped by the overflow policy of the queue, it's never searched
+		 * @param source the origin of the event
+		 * @param query the dropped fingerprint
+		 */
+		public void onSearchDropped( SearchTask source, Fingerprint query );
 	}
 	
 	/**
@@ -107,9 +115,12 @@ public interface SearchTask
 	public void start( SearchWorker worker, Listener listener );
 	
 	/**
-	 * add a fingerprint to identification queue
+	 * add a fingerprint to identification queue<br/>
+	 * the results are delivered in the order of the fingerprints,
+	 * a fingerprint dropped by a full queue is reported by {@link Listener#onSearchDropped(SearchTask, Fingerprint)}.
 	 * @param fp the fingerprint to search
 	 * @param queryPosition the query position in the audio
+	 * @throws IllegalStateException if the task was cancelled
 	 */
 	public void putFingerprint( Fingerprint fp, long queryPosition )
 	throws IllegalStateException;
@@ -4,7 +4,11 @@
 package com.mufin.android.common;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.os.Bundle;
 import android.os.Handler;
@@ -16,37 +20,78 @@ import com.mufin.ears.common.LicenseException;
 import com.mufin.ears.xtr.Fingerprint;
 
 /**
- * Thread implementation of {@link SearchTask}
+ * Thread implementation of {@link SearchTask}<br/>
+ * The task loop dispatches every fingerprint to a search request on the executor of the task,
+ * up to {@link #setSearchSessions(int, SearchWorkerBuilder)} requests run concurrently, 
+ * each with an own {@link SearchWorker}. The results are delivered in the order of the fingerprints,
+ * a result, which arrives before the results of older fingerprints, is held back.
  */
 public class SearchThread 
-extends BlockingQueueThread 
+extends BlockingQueueThread<SearchThread.SearchMessage> 
 implements SearchTask
 {
 	private static final int MAX_RESULTS = 10;
 
-	// internal queue params
-	private static final String PARAM_CODE = "PARAM_CODE";
-	private static final String PARAM_FINGERPRINT = "PARAM_FINGERPRINT";
-	private static final String PARAM_FINGERPRINT_POS = "PARAM_FINGERPRINT_POS";
-	
 	public static final int MessageCodeError = 1;
 	public static final int MessageCodeResult = 2;
+	public static final int MessageCodeDropped = 3;
 
 	private static final String PROGRESS_RESULT = "RESULT";
 	private static final String PROGRESS_SEARCH_DURATION = "SEARCH_DURATION";
 	private static final String PROGRESS_MESSAGE = "MESSAGE";
 	private static final String PROGRESS_ERROR_CODE = "ERROR_CODE";
+	private static final String PROGRESS_FINGERPRINT = "FINGERPRINT";
+	
+	/** the interval to check for cancel, while all sessions are busy */
+	private static final long SLOT_CHECK_INTERVAL = 100; // ms
 
 	/** the current thread loop process status */
 	private volatile StatusCode status = StatusCode.notInitialized;
 
 	private SearchWorker worker;
+	/** the builder of additional workers, null for a single worker */
+	private SearchWorkerBuilder workerBuilder = null;
+	/** the maximum count of concurrent search requests */
+	private int maxInFlight = 1;
+	
+	/** the free places for search requests */
+	private Semaphore searchSlots = null;
+	/** the workers without a running request, guarded by itself */
+	private final ArrayList<SearchWorker> idleWorkers = new ArrayList<SearchWorker>();
+	/** flag, if the task loop ended and returned workers are destroyed, guarded by {@link #idleWorkers} */
+	private boolean ended = false;
+	/** the count of running search requests */
+	private final AtomicInteger inFlight = new AtomicInteger( 0 );
+	
+	/** the sequence number of the next dispatched fingerprint, used by the task loop only */
+	private long nextSequence = 0;
+	/** the sequence number of the next delivered outcome, guarded by {@link #pendingOutcomes} */
+	private long nextDelivery = 0;
+	/** the outcomes of completed requests, which wait for the outcomes of older fingerprints */
+	private final HashMap<Long, SearchOutcome> pendingOutcomes = new HashMap<Long, SearchOutcome>();
 
 	public SearchThread()
 	{
 		super("SearchThread");
 	}
 	
+	/**
+	 * allow concurrent search requests, must be called before start.<br/>
+	 * the worker of {@link #start(SearchWorker, Listener)} is the first session, 
+	 * additional sessions are built by the builder, when all existing sessions are busy.
+	 * @param maxInFlight the maximum count of concurrent search requests
+	 * @param builder the builder of additional workers, the workers are owned by the task
+	 */
+	public void setSearchSessions( int maxInFlight, SearchWorkerBuilder builder ) {
+		if( isRunning() )
+			throw new IllegalStateException( "search sessions must be set before start" );
+		if( maxInFlight < 1 )
+			throw new IllegalArgumentException( "invalid count of search sessions " + maxInFlight );
+		
+		this.maxInFlight = maxInFlight;
+		this.workerBuilder = builder;
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 */
@@ -62,10 +107,34 @@ implements SearchTask
 	public void cancel() {
 		setCancelled( true );
 		
-		Bundle bundle = new Bundle();
-		bundle.putSerializable( PARAM_CODE, ParamCode.cancel );
+		SearchMessage message = obtainMessage();
+		message.code = ParamCode.cancel;
 		
-		getQueue().offer( bundle );
+		offerControl( message );
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	protected SearchMessage newMessage() {
+		return new SearchMessage();
+	}
+	
+	/**
+	 * report a fingerprint, which is dropped by the overflow policy, it's never answered otherwise
+	 */
+	@Override
+	protected void discardMessage( SearchMessage message ) {
+		final Fingerprint fingerprint = message.fingerprint;
+		if( message.code == ParamCode.identify && fingerprint != null && !isCancelled() )
+		{
+			Log.d( getClass().getName(), "drop query " + message.queryPosition );
+			Bundle bundle = new Bundle();
+			bundle.putSerializable( PROGRESS_FINGERPRINT, new BundleObject<Fingerprint>( fingerprint ) );
+			sendMessage( MessageCodeDropped, bundle );
+		}
+		super.discardMessage( message );
 	}
 
 	@Override
@@ -77,14 +146,21 @@ implements SearchTask
 			return;
 		}
 		
+		// without builder, the requests share a single worker
+		searchSlots = new Semaphore( workerBuilder != null ? maxInFlight : 1 );
+		synchronized( idleWorkers ) {
+			idleWorkers.add( worker );
+		}
+		worker = null; // owned by the idle list
+		
 		status = StatusCode.free;
 		
-		Bundle queueElement;
+		SearchMessage queueElement;
 		session : while( !isCancelled() )
 		{
 			try
 			{ // Take element from queue. Blocks when empty.
-				queueElement = getQueue().take();
+				queueElement = takeMessage();
 			}
 			catch( InterruptedException e )
 			{
@@ -94,75 +170,45 @@ implements SearchTask
 			if( isCancelled() )
 				break session;
 
+			final ParamCode code = queueElement.code;
+			final Fingerprint fingerprint = queueElement.fingerprint;
+			final long queryPosition = queueElement.queryPosition;
+			recycleMessage( queueElement );
+			
 			// the param code shows the type of the queue element
-			switch( (ParamCode) queueElement.getSerializable( PARAM_CODE ) )
+			switch( code )
 			{
 			case identify: // end of record: try to identify
 				Log.d( getClass().getName(), "end of record" );
 				
-				@SuppressWarnings("unchecked")
-				Fingerprint fingerprint = ((BundleObject<Fingerprint>)queueElement.getSerializable( PARAM_FINGERPRINT )).obj;
+				final long sequence = nextSequence++;
 				if( fingerprint == null || !fingerprint.full() )
 				{
-					publishError( "Not enough data for identification." );
+					complete( sequence, SearchOutcome.error( fingerprint, "Not enough data for identification.", null, false ) );
 					break;
 				}
-				else
+				
+				// wait for a free session
+				try
 				{
-					status = StatusCode.identifying;
-					
-					long start = System.currentTimeMillis();
-					long queryPosition = queueElement.getLong( PARAM_FINGERPRINT_POS );
-					
-					List<IdentifyResult> result = new ArrayList<IdentifyResult>( MAX_RESULTS );
-					int searchRes;
-                    try
-                    {
-	                    searchRes = worker.search(fingerprint, queryPosition, MAX_RESULTS, result);
-                    }
-                    catch( LicenseException e )
-                    {
-						publishError( "license error", -1 );
-						break session;
-                    }
-                    
-                    // cancelled while waiting for result?
-                    if(!isCancelled())
-                    {
-						if(searchRes < 0)
-						{
-							publishError( "session search error", searchRes );
-							Log.e( getClass().getName(), "session search error after " + ((System.currentTimeMillis() - start) + "ms" ) );
-						}
-						else
-						{
-							long identTime = (System.currentTimeMillis() - start);
-							
-							// copy results from iterator, because iterator becomes invalid, with next predator.push()
-							ArrayList<IdentifyResult> results = new ArrayList<IdentifyResult>();
-							for (IdentifyResult hyp : result) {
-								Log.d( getClass().getName(), "worker.search result: " + hyp );
-								if(hyp != null)
-								{
-									Log.d( getClass().getName(), "result id: " + hyp.getId() +
-																" conf: " + hyp.getConfidence() +
-																" ts: " + hyp.getTimestamp() );
-									results.add( hyp );
-								}
-							}
-							
-							// send result message
-							publishResult( results, identTime );
-						}
-						
-						// reset status after identification
-						status = StatusCode.free;
-                    }
+					while( !searchSlots.tryAcquire( SLOT_CHECK_INTERVAL, TimeUnit.MILLISECONDS ) )
+					{
+						if( isCancelled() )
+							break session;
+					}
 				}
+				catch( InterruptedException e )
+				{
+					break session;
+				}
+				
+				status = StatusCode.identifying;
+				inFlight.incrementAndGet();
+				execute( new SearchRequest( sequence, fingerprint, queryPosition ) );
 				break;
 				
 			case cancel: // end the task and release the queue
-				getQueue().clear();
+				clearQueue();
 				this.setCancelled( true );
 				break session;
 
@@ -171,22 +217,104 @@ implements SearchTask
 			}
 		}
 		
-		getQueue().clear();
+		clearQueue();
 		
-		worker.destroy();
-		worker = null; // de-ref worker instance
+		if( getDroppedCount() > 0 )
+			Log.i( getClass().getName(), "queue overflow dropped " + getDroppedCount() + " fingerprints" );
+		
+		// running requests destroy their worker on return
+		synchronized( idleWorkers ) {
+			ended = true;
+			for( SearchWorker idle : idleWorkers )
+				idle.destroy();
+			idleWorkers.clear();
+		}
 		
 		status = StatusCode.notInitialized;
 
 		Log.i( getClass().getName(), "Search Task ended" );
 	}
 	
+	/**
+	 * take an idle worker, or build a new one, if all workers are busy
+	 * @return the worker
+	 * @throws LicenseException
+	 */
+	private SearchWorker acquireWorker() throws LicenseException
+	{
+		synchronized( idleWorkers ) {
+			if( !idleWorkers.isEmpty() )
+				return idleWorkers.remove( idleWorkers.size() - 1 );
+		}
+		if( workerBuilder == null )
+			throw new IllegalStateException( "no search worker available" );
+		
+		Log.d( getClass().getName(), "build additional search session" );
+		return workerBuilder.build();
+	}
+	
+	/**
+	 * return a worker after a request, it's destroyed if the task ended meanwhile
+	 * @param worker the worker
+	 */
+	private void releaseWorker( SearchWorker worker )
+	{
+		synchronized( idleWorkers ) {
+			if( !ended ) {
+				idleWorkers.add( worker );
+				return;
+			}
+		}
+		worker.destroy();
+	}
+	
+	/**
+	 * deliver the outcome of a fingerprint, after the outcomes of all older fingerprints
+	 * @param sequence the sequence number of the fingerprint
+	 * @param outcome the outcome
+	 */
+	private void complete( long sequence, SearchOutcome outcome )
+	{
+		synchronized( pendingOutcomes ) {
+			// cancelled while waiting for result?
+			if( isCancelled() ) {
+				if( outcome.fatal )
+					publish( outcome );
+				return;
+			}
+			
+			pendingOutcomes.put( sequence, outcome );
+			SearchOutcome next;
+			while( (next = pendingOutcomes.remove( nextDelivery )) != null ) {
+				nextDelivery++;
+				publish( next );
+			}
+		}
+	}
+	
+	private void publish( SearchOutcome outcome )
+	{
+		final long held = System.currentTimeMillis() - outcome.completionTime;
+		if( held > 0 )
+			Log.d( getClass().getName(), "result held back " + held + "ms for older queries" );
+		
+		if( outcome.error != null ) {
+			publishError( outcome.fingerprint, outcome.error, outcome.errorCode );
+		}
+		else {
+			publishResult( outcome.fingerprint, outcome.results, outcome.searchDuration );
+			if( inFlight.get() == 0 )
+				status = StatusCode.free;
+		}
+	}
+	
 	/**
 	 * publish error message to observer/listener
+	 * @param fingerprint the fingerprint of the failed search, or null
 	 * @param errorMessage the string error message
 	 * @param errorCode the optional error code
 	 */
-	private void publishError( String errorMessage, Integer errorCode )
+	private void publishError( Fingerprint fingerprint, String errorMessage, Integer errorCode )
 	{
 		status = StatusCode.error;
 		
@@ -197,6 +325,9 @@ implements SearchTask
 		if( errorCode != null ) {
 			bundle.putInt( PROGRESS_ERROR_CODE, errorCode );
 		}
+		if( fingerprint != null ) {
+			bundle.putSerializable( PROGRESS_FINGERPRINT, new BundleObject<Fingerprint>( fingerprint ) );
+		}
 		
 		sendMessage( MessageCodeError, bundle );
 	}
@@ -206,15 +337,17 @@ implements SearchTask
 	 */
 	private void publishError( String errorMessage )
 	{
-		publishError( errorMessage, null );
+		publishError( null, errorMessage, null );
 	}
 	/**
 	 * publish result to observer/listener
+	 * @param fingerprint the searched fingerprint
 	 * @param results the result object of identification or null if not found
 	 */
-	private void publishResult( ArrayList< IdentifyResult > results, long searchTime )
+	private void publishResult( Fingerprint fingerprint, ArrayList< IdentifyResult > results, long searchTime )
 	{
 		Bundle bundle = new Bundle();
+		bundle.putSerializable( PROGRESS_FINGERPRINT, new BundleObject<Fingerprint>( fingerprint ) );
 		bundle.putSerializable( PROGRESS_RESULT, results );
 		bundle.putLong( PROGRESS_SEARCH_DURATION, searchTime );
 		
@@ -232,16 +365,16 @@ implements SearchTask
 	public void putFingerprint( Fingerprint fp, long queryPosition )
 	throws IllegalStateException
 	{
-		if(status == StatusCode.identifying) {
-			throw new IllegalStateException("Cannot put samples while previous identification running");
+		if( isCancelled() ) {
+			throw new IllegalStateException("Cannot put fingerprint to cancelled task");
 		}
 		
-		Bundle bundle = new Bundle();
-		bundle.putSerializable( PARAM_CODE, ParamCode.identify );
-		bundle.putSerializable( PARAM_FINGERPRINT, new BundleObject<Fingerprint>(fp) );
-		bundle.putLong( PARAM_FINGERPRINT_POS, queryPosition );
+		SearchMessage message = obtainMessage();
+		message.code = ParamCode.identify;
+		message.fingerprint = fp;
+		message.queryPosition = queryPosition;
 		
-		getQueue().offer( bundle );
+		offerData( message );
 	}
 
 	/**
@@ -252,6 +385,144 @@ implements SearchTask
 		return status;
 	}
 	
+	/**
+	 * the queue message
+	 */
+	protected static final class SearchMessage extends QueueMessage
+	{
+		/** the type of the message */
+		private ParamCode code;
+		/** the fingerprint of {@link ParamCode#identify} */
+		private Fingerprint fingerprint;
+		/** the query position of {@link ParamCode#identify} */
+		private long queryPosition;
+		
+		@Override
+		protected void clear()
+		{
+			code = null;
+			fingerprint = null;
+			queryPosition = 0;
+		}
+	}
+	
+	/**
+	 * a search request, executed with an own worker
+	 */
+	private class SearchRequest implements Runnable
+	{
+		private final long sequence;
+		private final Fingerprint fingerprint;
+		private final long queryPosition;
+		
+		public SearchRequest( long sequence, Fingerprint fingerprint, long queryPosition )
+		{
+			this.sequence = sequence;
+			this.fingerprint = fingerprint;
+			this.queryPosition = queryPosition;
+		}
+		
+		@Override
+		public void run()
+		{
+			SearchOutcome outcome;
+			SearchWorker worker = null;
+			try
+			{
+				worker = acquireWorker();
+				
+				long start = System.currentTimeMillis();
+				
+				List<IdentifyResult> result = new ArrayList<IdentifyResult>( MAX_RESULTS );
+				int searchRes = worker.search(fingerprint, queryPosition, MAX_RESULTS, result);
+				long identTime = (System.currentTimeMillis() - start);
+				
+				if(searchRes < 0)
+				{
+					Log.e( SearchThread.class.getName(), "session search error after " + identTime + "ms" );
+					outcome = SearchOutcome.error( fingerprint, "session search error", searchRes, false );
+				}
+				else
+				{
+					// copy results from iterator, because iterator becomes invalid, with next predator.push()
+					ArrayList<IdentifyResult> results = new ArrayList<IdentifyResult>();
+					for (IdentifyResult hyp : result) {
+						Log.d( SearchThread.class.getName(), "worker.search result: " + hyp );
+						if(hyp != null)
+						{
+							Log.d( SearchThread.class.getName(), "result id: " + hyp.getId() +
+														" conf: " + hyp.getConfidence() +
+														" ts: " + hyp.getTimestamp() );
+							results.add( hyp );
+						}
+					}
+					Log.d( SearchThread.class.getName(), "query " + queryPosition + " searched in " + identTime + "ms" );
+					outcome = SearchOutcome.result( fingerprint, results, identTime );
+				}
+				
+				releaseWorker( worker );
+				worker = null;
+			}
+			catch( LicenseException e )
+			{
+				outcome = SearchOutcome.error( fingerprint, "license error", -1, true );
+				cancel();
+			}
+			catch( RuntimeException e )
+			{
+				Log.e( SearchThread.class.getName(), "search failed", e );
+				outcome = SearchOutcome.error( fingerprint, "search failed: " + e.getMessage(), null, false );
+			}
+			finally
+			{
+				// the state of a failed worker is unknown
+				if( worker != null )
+					worker.destroy();
+			}
+			
+			inFlight.decrementAndGet();
+			complete( sequence, outcome );
+			searchSlots.release();
+		}
+	}
+	
+	/**
+	 * the result or error of a search request
+	 */
+	private static final class SearchOutcome
+	{
+		/** the searched fingerprint, the listener matches the outcome by it */
+		private Fingerprint fingerprint;
+		private ArrayList<IdentifyResult> results;
+		/** the duration of the search request */
+		private long searchDuration;
+		private String error;
+		private Integer errorCode;
+		/** flag, if the error ended the task, it's delivered even after cancel */
+		private boolean fatal;
+		/** the time the request completed, to log the delay of in order delivery */
+		private final long completionTime = System.currentTimeMillis();
+		
+		static SearchOutcome result( Fingerprint fingerprint, ArrayList<IdentifyResult> results, long searchDuration )
+		{
+			SearchOutcome outcome = new SearchOutcome();
+			outcome.fingerprint = fingerprint;
+			outcome.results = results;
+			outcome.searchDuration = searchDuration;
+			return outcome;
+		}
+		
+		static SearchOutcome error( Fingerprint fingerprint, String error, Integer errorCode, boolean fatal )
+		{
+			SearchOutcome outcome = new SearchOutcome();
+			outcome.fingerprint = fingerprint;
+			outcome.error = error;
+			outcome.errorCode = errorCode;
+			outcome.fatal = fatal;
+			return outcome;
+		}
+	}
+	
 	/**
 	 * handler for listener messages
 	 */
@@ -278,6 +549,7 @@ implements SearchTask
 				long searchDuration = data.getLong(PROGRESS_SEARCH_DURATION);
 				listener.onSearchResult( 
 							SearchThread.this, 
+							getFingerprint( data ),
 							identifyResult, 
 							searchDuration );
 				break;
@@ -286,15 +558,29 @@ implements SearchTask
 				Object errorCode = data.get( PROGRESS_ERROR_CODE );
 				listener.onSearchError( 
 							SearchThread.this, 
+							getFingerprint( data ),
 							data.getString( PROGRESS_MESSAGE ),
 							errorCode == null ? null : (Integer) errorCode );
 				break;
 
+			case MessageCodeDropped:
+				listener.onSearchDropped( 
+							SearchThread.this, 
+							getFingerprint( data ) );
+				break;
+
 			default:
 				Log.e( getClass().getName(), "This should never happen: unknown progress message." );
 				throw new RuntimeException( "This should never happen: unknown progress message." );
 			}
 			return false;
 		}
+		
+		@SuppressWarnings("unchecked")
+		private Fingerprint getFingerprint( Bundle data )
+		{
+			BundleObject<Fingerprint> fingerprint = (BundleObject<Fingerprint>) data.get( PROGRESS_FINGERPRINT );
+			return fingerprint == null ? null : fingerprint.obj;
+		}
 	}
 }
@@ -0,0 +1,349 @@
+package com.mufin.android.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import android.util.Log;
+
+import com.mufin.android.common.SearchTask.SearchWorker;
+import com.mufin.android.common.SearchTask.SearchWorkerBuilder;
+import com.mufin.ears.common.IdentifyResult;
+import com.mufin.ears.common.LicenseException;
+import com.mufin.ears.xtr.Fingerprint;
+
+/**
+ * pool of idle {@link SearchWorker} instances, e.g. server sessions, which survive the end of a {@link SearchTask}.<br/>
+ * The workers are grouped by a key, e.g. the connection settings, which must implement equals and hashCode.
+ * A task borrows a worker by the builder of {@link #builder(Object, SearchWorkerBuilder)},
+ * {@link SearchWorker#destroy()} of the borrowed worker returns it to the pool.<br/>
+ * A worker, whose last search failed, is destroyed instead of returned.
+ * Workers idle longer than the idle timeout are destroyed by a background job on {@link TaskRuntime},
+ * which runs while the pool has idle workers, so no sessions stay open after the last search.
+ */
+public class SearchWorkerPool {
+
+	/** the default maximum count of idle workers per key */
+	public static final int DEFAULT_MAX_IDLE = 4;
+	/** the default time, after which an idle worker is destroyed */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60000; // ms
+
+	private final int maxIdle;
+	private final long idleTimeout;
+	/** the idle workers of each key, guarded by this */
+	private final HashMap<Object, Entry> entries = new HashMap<Object, Entry>();
+
+	/** the count of built workers, guarded by this */
+	private int createdCount = 0;
+	/** the count of borrowed idle workers, guarded by this */
+	private int reusedCount = 0;
+	/** flag, if the eviction job runs, guarded by this */
+	private boolean evicting = false;
+
+	/**
+	 * same as SearchWorkerPool(DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT)
+	 */
+	public SearchWorkerPool() {
+		this( DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT );
+	}
+
+	/**
+	 * ctor
+	 * @param maxIdle the maximum count of idle workers per key
+	 * @param idleTimeout the time in ms, after which an idle worker is destroyed
+	 */
+	public SearchWorkerPool( int maxIdle, long idleTimeout ) {
+		super();
+		if( maxIdle < 0 )
+			throw new IllegalArgumentException( "invalid idle count " + maxIdle );
+		this.maxIdle = maxIdle;
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * create a builder, which borrows workers from the pool
+	 * @param key the key of the workers, e.g. the connection settings
+	 * @param factory the builder of new workers, if no idle worker is available
+	 * @return the builder
+	 */
+	public SearchWorkerBuilder builder( final Object key, final SearchWorkerBuilder factory ) {
+		return new SearchWorkerBuilder() {
+			@Override
+			public SearchWorker build() throws LicenseException {
+				return borrow( key, factory );
+			}
+		};
+	}
+
+	/**
+	 * take an idle worker, or build a new one
+	 * @param key the key of the worker
+	 * @param factory the builder of new workers
+	 * @return the worker, {@link SearchWorker#destroy()} returns it to the pool
+	 * @throws LicenseException
+	 */
+	public SearchWorker borrow( Object key, SearchWorkerBuilder factory ) throws LicenseException {
+		evictIdle();
+
+		SearchWorker worker = null;
+		synchronized( this ) {
+			Entry entry = entries.get( key );
+			if( entry != null && !entry.idle.isEmpty() ) {
+				// the most recently used worker, the oldest ones time out
+				worker = entry.idle.remove( entry.idle.size() - 1 ).worker;
+				reusedCount++;
+			}
+		}
+		if( worker == null ) {
+			worker = factory.build();
+			synchronized( this ) {
+				createdCount++;
+			}
+		}
+		return new PooledWorker( key, worker );
+	}
+
+	/**
+	 * build idle workers in the background, e.g. before the first search of a recording,
+	 * so the connection setup isn't on the critical path of the first query
+	 * @param key the key of the workers
+	 * @param factory the builder of new workers
+	 * @param count the count of idle workers to provide, limited by the maximum idle count
+	 */
+	public void prewarm( final Object key, final SearchWorkerBuilder factory, int count ) {
+		evictIdle();
+
+		final int missing;
+		synchronized( this ) {
+			Entry entry = getEntry( key );
+			missing = Math.min( count, maxIdle ) - entry.idle.size() - entry.pending;
+			if( missing <= 0 )
+				return;
+			entry.pending += missing;
+		}
+
+		Log.d( getClass().getName(), "prewarm " + missing + " search workers" );
+		for( int i = 0; i < missing; i++ ) {
+			TaskRuntime.execute( null, new Runnable() {
+				@Override
+				public void run() {
+					SearchWorker worker = null;
+					try {
+						worker = factory.build();
+					}
+					catch( LicenseException e ) {
+						Log.w( SearchWorkerPool.class.getName(), "prewarm failed: " + e.getMessage() );
+					}
+					synchronized( SearchWorkerPool.this ) {
+						getEntry( key ).pending--;
+						if( worker != null )
+							createdCount++;
+					}
+					if( worker != null )
+						release( key, worker );
+				}
+			}, "SearchWorkerPool-prewarm" );
+		}
+	}
+
+	/**
+	 * destroy the workers idle longer than the idle timeout
+	 */
+	public void evictIdle() {
+		final long now = System.currentTimeMillis();
+		List<SearchWorker> evicted = null;
+		synchronized( this ) {
+			for( Entry entry : entries.values() ) {
+				for( Iterator<IdleWorker> it = entry.idle.iterator(); it.hasNext(); ) {
+					IdleWorker idle = it.next();
+					if( now - idle.since < idleTimeout )
+						continue;
+
+					it.remove();
+					if( evicted == null )
+						evicted = new ArrayList<SearchWorker>();
+					evicted.add( idle.worker );
+				}
+			}
+		}
+		if( evicted != null ) {
+			Log.d( getClass().getName(), "evict " + evicted.size() + " idle search workers" );
+			for( SearchWorker worker : evicted )
+				worker.destroy();
+		}
+	}
+
+	/**
+	 * destroy all idle workers, borrowed workers are returned to the pool as usual
+	 */
+	public void clear() {
+		List<SearchWorker> idle = new ArrayList<SearchWorker>();
+		synchronized( this ) {
+			for( Entry entry : entries.values() ) {
+				for( IdleWorker worker : entry.idle )
+					idle.add( worker.worker );
+				entry.idle.clear();
+			}
+			// the eviction job ends
+			notifyAll();
+		}
+		for( SearchWorker worker : idle )
+			worker.destroy();
+	}
+
+	/**
+	 * @return the count of built workers
+	 */
+	public synchronized int getCreatedCount() {
+		return createdCount;
+	}
+
+	/**
+	 * @return the count of borrowed idle workers
+	 */
+	public synchronized int getReusedCount() {
+		return reusedCount;
+	}
+
+	/**
+	 * return a healthy worker to the idle list, or destroy it, if the list is full
+	 */
+	private void release( Object key, SearchWorker worker ) {
+		synchronized( this ) {
+			Entry entry = getEntry( key );
+			if( entry.idle.size() < maxIdle ) {
+				entry.idle.add( new IdleWorker( worker ) );
+				startEviction();
+				return;
+			}
+		}
+		worker.destroy();
+	}
+
+	/**
+	 * start the job, which evicts the idle workers on time, if it isn't running
+	 */
+	private synchronized void startEviction() {
+		if( evicting )
+			return;
+		evicting = true;
+
+		TaskRuntime.execute( null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					long delay;
+					while( (delay = getEvictionDelay()) >= 0 ) {
+						if( delay > 0 ) {
+							synchronized( SearchWorkerPool.this ) {
+								SearchWorkerPool.this.wait( delay );
+							}
+						}
+						evictIdle();
+					}
+				}
+				catch( InterruptedException e ) {
+					synchronized( SearchWorkerPool.this ) {
+						evicting = false;
+					}
+				}
+			}
+		}, "SearchWorkerPool-evict" );
+	}
+
+	/**
+	 * @return the time until the oldest idle worker times out, or -1 if there is no idle worker,
+	 * the eviction job ends then
+	 */
+	private synchronized long getEvictionDelay() {
+		long oldest = Long.MAX_VALUE;
+		for( Entry entry : entries.values() ) {
+			// the oldest one is first
+			if( !entry.idle.isEmpty() )
+				oldest = Math.min( oldest, entry.idle.get( 0 ).since );
+		}
+		if( oldest == Long.MAX_VALUE ) {
+			evicting = false;
+			return -1;
+		}
+		return Math.max( 0, oldest + idleTimeout - System.currentTimeMillis() );
+	}
+
+	private Entry getEntry( Object key ) {
+		Entry entry = entries.get( key );
+		if( entry == null ) {
+			entry = new Entry();
+			entries.put( key, entry );
+		}
+		return entry;
+	}
+
+	/**
+	 * the workers of a key
+	 */
+	private static final class Entry {
+		/** the idle workers, the most recently returned last */
+		private final ArrayList<IdleWorker> idle = new ArrayList<IdleWorker>();
+		/** the count of workers built by {@link SearchWorkerPool#prewarm(Object, SearchWorkerBuilder, int)} */
+		private int pending = 0;
+	}
+
+	private static final class IdleWorker {
+		private final SearchWorker worker;
+		/** the time the worker was returned */
+		private final long since = System.currentTimeMillis();
+
+		private IdleWorker( SearchWorker worker ) {
+			this.worker = worker;
+		}
+	}
+
+	/**
+	 * the borrowed worker, tracks the health of the worker
+	 */
+	private final class PooledWorker implements SearchWorker {
+		private final Object key;
+		private SearchWorker worker;
+		/** false, if a search failed, the session state is unknown afterwards */
+		private boolean healthy = true;
+
+		private PooledWorker( Object key, SearchWorker worker ) {
+			this.key = key;
+			this.worker = worker;
+		}
+
+		@Override
+		public int search( Fingerprint query, long queryPosition, int numResults, List<IdentifyResult> result ) throws LicenseException {
+			if( worker == null )
+				throw new IllegalStateException( "search worker already returned" );
+
+			boolean succeeded = false;
+			try {
+				int searchRes = worker.search( query, queryPosition, numResults, result );
+				succeeded = searchRes >= 0;
+				return searchRes;
+			}
+			finally {
+				if( !succeeded )
+					healthy = false;
+			}
+		}
+
+		@Override
+		public void destroy() {
+			final SearchWorker returned = worker;
+			worker = null;
+			if( returned == null )
+				return;
+
+			if( healthy ) {
+				release( key, returned );
+			}
+			else {
+				Log.d( SearchWorkerPool.class.getName(), "destroy failed search worker" );
+				returned.destroy();
+			}
+		}
+	}
+}
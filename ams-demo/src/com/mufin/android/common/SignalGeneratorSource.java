@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) mufin GmbH. All rights reserved.
+ */
+package com.mufin.android.common;
+
+import java.util.Random;
+
+/**
+ * {@link AudioSource} implementation for a deterministic mono test signal.<br/>
+ * The signal is a sum of sine tones plus noise from a seeded generator, so
+ * every run with the same parameters produces the same samples. The samples
+ * are generated as fast as requested, without real time pacing.
+ */
+public class SignalGeneratorSource implements AudioSource
+{
+	/** the read size */
+	private static final int BUFFER_SIZE = 4096;
+	
+	private final int sampleRate;
+	/** the tone frequencies in Hz */
+	private final float[] frequencies;
+	/** the amplitude of each tone, interval [0..1] */
+	private final float amplitude;
+	/** the noise amplitude, interval [0..1] */
+	private final float noise;
+	/** the random seed of the noise */
+	private final long seed;
+	/** the count of samples to generate, or < 0 for unlimited */
+	private final long length;
+	
+	/** the phase increment per sample of each tone */
+	private final double[] phaseIncrements;
+	/** the current phase of each tone */
+	private final double[] phases;
+	/** the noise generator */
+	private Random random;
+	/** the count of generated samples */
+	private long position;
+	
+	/**
+	 * ctor
+	 * @param sampleRate the sample rate
+	 * @param frequencies the tone frequencies in Hz
+	 * @param amplitude the amplitude of each tone, interval [0..1]
+	 * @param noise the noise amplitude, interval [0..1]
+	 * @param seed the random seed of the noise
+	 * @param duration the duration to generate in ms, or {@link SampleRecorder#RECORDING_DURATION_UNLIMITED}
+	 */
+	public SignalGeneratorSource( int sampleRate, float[] frequencies, float amplitude, float noise, long seed, int duration )
+	{
+		super();
+		this.sampleRate = sampleRate;
+		this.frequencies = frequencies.clone();
+		this.amplitude = amplitude;
+		this.noise = noise;
+		this.seed = seed;
+		this.length = duration < 0 ? -1 : (long)sampleRate * duration / 1000;
+		
+		phaseIncrements = new double[ this.frequencies.length ];
+		phases = new double[ this.frequencies.length ];
+		for( int i = 0; i < phaseIncrements.length; i++ )
+		{
+			phaseIncrements[ i ] = 2. * Math.PI * this.frequencies[ i ] / sampleRate;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean open()
+	{
+		return sampleRate > 0;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getSampleRate()
+	{
+		return sampleRate;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getChannelCount()
+	{
+		return 1;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int getBufferSize()
+	{
+		return BUFFER_SIZE;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void start()
+	{
+		random = new Random( seed );
+		position = 0;
+		for( int i = 0; i < phases.length; i++ )
+		{
+			phases[ i ] = 0.;
+		}
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public int read( short[] buffer, int offset, int length )
+	{
+		final int count = this.length < 0 ? length : (int)Math.min( length, this.length - position );
+		
+		for( int n = 0; n < count; n++ )
+		{
+			double value = noise * ( 2. * random.nextDouble() - 1. );
+			for( int i = 0; i < phases.length; i++ )
+			{
+				value += amplitude * Math.sin( phases[ i ] );
+				phases[ i ] += phaseIncrements[ i ];
+				if( phases[ i ] > 2. * Math.PI ) phases[ i ] -= 2. * Math.PI;
+			}
+			// clip to 16 bit
+			value = Math.max( -1., Math.min( 1., value ) );
+			buffer[ offset + n ] = (short)( value * Short.MAX_VALUE );
+		}
+		position += count;
+		return count;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void release()
+	{
+		random = null;
+	}
+}
@@ -0,0 +1,100 @@
+package com.mufin.android.common;
+
+/**
+ * Energy based gate to drop silent audio before fingerprint extraction.<br/>
+ * The gate closes, when the level stays below the close level for the hold time,
+ * and opens again as soon as a buffer reaches the open level. The open level is higher than
+ * the close level, so a level around one threshold doesn't toggle the gate on every buffer.<br/>
+ * Levels are RMS in dB relative to full scale, e.g. -50 for a quiet room.
+ * An instance keeps the state of one stream and must only be used by one thread.
+ */
+public class SilenceGate {
+	/** default level to open the gate in dBFS */
+	public static final float DEFAULT_OPEN_LEVEL = -45.f;
+	/** default level to close the gate in dBFS */
+	public static final float DEFAULT_CLOSE_LEVEL = -50.f;
+	/** default time the level must stay below the close level in ms */
+	public static final int DEFAULT_HOLD_DURATION = 1800;
+	
+	/** the level of a silent buffer, log of 0 is undefined */
+	private static final float MIN_LEVEL = -120.f;
+	/** the square of the full scale amplitude */
+	private static final double FULL_SCALE_SQUARE = 32768.0 * 32768.0;
+	
+	private final float openLevel;
+	private final float closeLevel;
+	/** the hold time in samples */
+	private final long holdSamples;
+	
+	/** the gate state, starts open */
+	private boolean open = true;
+	/** the count of samples below the close level since the last louder buffer */
+	private long silentSamples = 0;
+	/** the level of the last buffer */
+	private float level = MIN_LEVEL;
+	
+	/**
+	 * ctor
+	 * @param sampleRate the sample rate of the audio
+	 * @param channels the channel count of the audio
+	 * @param openLevel the level to open the gate in dBFS
+	 * @param closeLevel the level to close the gate in dBFS, must not be higher than openLevel
+	 * @param holdDuration the time the level must stay below closeLevel to close the gate in ms
+	 */
+	public SilenceGate(int sampleRate, int channels, float openLevel, float closeLevel, int holdDuration) {
+		super();
+		if(sampleRate <= 0 || channels <= 0) throw new IllegalArgumentException("invalid format " + sampleRate + "Hz " + channels + "ch");
+		if(closeLevel > openLevel) throw new IllegalArgumentException("close level " + closeLevel + " exceeds open level " + openLevel);
+		if(holdDuration < 0) throw new IllegalArgumentException("invalid hold duration " + holdDuration);
+		
+		this.openLevel = openLevel;
+		this.closeLevel = closeLevel;
+		this.holdSamples = (long)sampleRate * channels * holdDuration / 1000;
+	}
+	
+	/**
+	 * measure the level of the samples and update the gate state
+	 * @param samples the audio
+	 * @param offset the start index in samples
+	 * @param length the count of samples
+	 * @return true if the gate is open and the samples should be extracted
+	 */
+	public boolean process(short[] samples, int offset, int length) {
+		if(length <= 0) return open;
+		
+		double sum = 0;
+		for(int i = offset, end = offset + length; i < end; i++) {
+			final int v = samples[i];
+			sum += v * v;
+		}
+		final double power = sum / length / FULL_SCALE_SQUARE;
+		level = power > 0 ? Math.max(MIN_LEVEL, (float)(10 * Math.log10(power))) : MIN_LEVEL;
+		
+		if(open) {
+			if(level < closeLevel) {
+				silentSamples += length;
+				if(silentSamples >= holdSamples) open = false;
+			} else {
+				silentSamples = 0;
+			}
+		} else if(level >= openLevel) {
+			open = true;
+			silentSamples = 0;
+		}
+		return open;
+	}
+	
+	/**
+	 * @return true if the gate is open
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+	
+	/**
+	 * @return the level of the last processed samples in dBFS
+	 */
+	public float getLevel() {
+		return level;
+	}
+}
@@ -0,0 +1,115 @@
+package com.mufin.android.common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * shared executor for the task loops of {@link BlockingQueueThread}, e.g. {@link SearchThread} and {@link ExtractorThread}.<br/>
+ * A task occupies its executor thread until it ends, so the idle threads of the default pool are reused
+ * by the tasks of the next recording, instead of creating new threads for every start/stop cycle.<br/>
+ * If the executor rejects a task, e.g. because all threads of a bounded pool are busy, the task runs
+ * on a dedicated thread, so a task never waits for another one to end.<br/>
+ * On a server JVM the default can be replaced, e.g. by a virtual thread per task executor,
+ * to run many streams without one OS thread per stage and stream.
+ */
+public final class TaskRuntime {
+
+	/**
+	 * the maximum count of threads of the default pool.<br/>
+	 * one recording runs the extractor task, the search task loop, up to 3 concurrent searches,
+	 * each with up to 2 hedge requests of a {@link HedgingSearchWorker}, and the session builds
+	 * of {@link SearchWorkerPool#prewarm(Object, SearchTask.SearchWorkerBuilder, int)} and {@link FutureSearchWorker},
+	 * about 15 threads at the peak, and the idle eviction of the {@link SearchWorkerPool}, while it has idle sessions. more tasks run on dedicated threads, see {@link #getFallbackCount()}
+	 */
+	public static final int DEFAULT_POOL_SIZE = 16;
+	/** the time an idle thread of the default pool is kept */
+	private static final long KEEP_ALIVE_TIME = 30; // s
+
+	/** the executor of all tasks without an own executor, created on first use */
+	private static volatile Executor defaultExecutor = null;
+	/** the count of tasks, which were rejected and run on a dedicated thread */
+	private static final AtomicInteger fallbackCount = new AtomicInteger( 0 );
+
+	private TaskRuntime() {
+	}
+
+	/**
+	 * @return the executor of all tasks without an own executor, a pool of {@link #DEFAULT_POOL_SIZE} threads if not set
+	 */
+	public static Executor getDefault() {
+		Executor executor = defaultExecutor;
+		if( executor == null ) {
+			synchronized( TaskRuntime.class ) {
+				if( defaultExecutor == null )
+					defaultExecutor = newBoundedPool( DEFAULT_POOL_SIZE );
+				executor = defaultExecutor;
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * replace the default executor, tasks already started keep their executor.<br/>
+	 * the previous executor is not shut down.
+	 * @param executor the new default, or null for the default pool
+	 */
+	public static void setDefault( Executor executor ) {
+		synchronized( TaskRuntime.class ) {
+			defaultExecutor = executor;
+		}
+	}
+
+	/**
+	 * create a pool, which keeps idle threads for reuse and never queues a task.<br/>
+	 * a task is rejected, while all threads are busy.
+	 * @param maxThreads the maximum count of threads
+	 * @return the pool
+	 */
+	public static ThreadPoolExecutor newBoundedPool( int maxThreads ) {
+		if( maxThreads <= 0 )
+			throw new IllegalArgumentException( "invalid pool size " + maxThreads );
+
+		return new ThreadPoolExecutor( 0, maxThreads, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new TaskThreadFactory() );
+	}
+
+	/**
+	 * run a task on the executor, or on a dedicated thread, if the executor rejects it
+	 * @param executor the executor, or null for the default
+	 * @param task the task
+	 * @param name the name of the dedicated thread
+	 */
+	static void execute( Executor executor, Runnable task, String name ) {
+		try {
+			( executor != null ? executor : getDefault() ).execute( task );
+		}
+		catch( RejectedExecutionException e ) {
+			fallbackCount.incrementAndGet();
+			Log.d( TaskRuntime.class.getName(), "executor busy, start dedicated thread " + name );
+			new Thread( task, name ).start();
+		}
+	}
+
+	/**
+	 * @return the count of tasks, which were rejected by the executor and run on a dedicated thread
+	 */
+	public static int getFallbackCount() {
+		return fallbackCount.get();
+	}
+
+	private static class TaskThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger( 0 );
+
+		@Override
+		public Thread newThread( Runnable r ) {
+			return new Thread( r, "TaskRuntime-" + count.incrementAndGet() );
+		}
+	}
+}
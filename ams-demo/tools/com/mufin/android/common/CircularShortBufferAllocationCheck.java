@@ -0,0 +1,73 @@
+package com.mufin.android.common;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ShortBuffer;
+
+/**
+ * checks, that steady-state reads of {@link CircularShortBuffer} allocate nothing.<br/>
+ * A desktop JVM tool, not part of the app. It needs the thread allocation counter of HotSpot
+ * (com.sun.management.ThreadMXBean), run from the ams-demo directory:
+ * <pre>
+ * javac -d /tmp/tools -sourcepath src tools/com/mufin/android/common/CircularShortBufferAllocationCheck.java
+ * java -cp /tmp/tools com.mufin.android.common.CircularShortBufferAllocationCheck
+ * </pre>
+ * The exit code is 1, if the reads allocated or returned wrong samples.
+ */
+public class CircularShortBufferAllocationCheck {
+
+	private static final int RING_SIZE = 16000 * 6;
+	private static final int PERIOD = 16000 * 6 / 10;
+	private static final int WARMUP = 20000;
+	private static final int ITERATIONS = 200000;
+
+	public static void main(String[] args) {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+
+		final CircularShortBuffer ring = new CircularShortBuffer(RING_SIZE);
+		final short[] period = new short[PERIOD];
+		final short[] linear = new short[RING_SIZE];
+		final ShortBuffer direct = ShortBuffer.allocate(RING_SIZE);
+		final CircularShortBuffer.Segments segments = ring.newSegments();
+
+		// the reads must unfold the ring like getBuffer()
+		for(int i = 0; i < 25; i++)
+			step(ring, period, linear, direct, segments, i);
+		if(!java.util.Arrays.equals(linear, ring.getBuffer(0, RING_SIZE))) {
+			System.out.println("FAILED: read(short[]) differs from getBuffer()");
+			System.exit(1);
+		}
+
+		for(int i = 0; i < WARMUP; i++)
+			step(ring, period, linear, direct, segments, i);
+
+		final long before = threads.getThreadAllocatedBytes(thread);
+		long checksum = 0;
+		for(int i = 0; i < ITERATIONS; i++)
+			checksum += step(ring, period, linear, direct, segments, i);
+		final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		System.out.println(ITERATIONS + " iterations of put + read(short[]) + read(ShortBuffer) + getSegments: "
+				+ allocated + " bytes allocated (checksum " + checksum + ")");
+		if(allocated > 0) {
+			System.out.println("FAILED: steady-state reads allocate");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * put one recorder period and unfold the whole ring by all read methods
+	 */
+	private static int step(CircularShortBuffer ring, short[] period, short[] linear, ShortBuffer direct,
+			CircularShortBuffer.Segments segments, int iteration) {
+		for(int i = 0; i < period.length; i++)
+			period[i] = (short)(iteration + i);
+		ring.put(period);
+
+		ring.read(0, RING_SIZE, linear, 0);
+		direct.clear();
+		ring.read(0, RING_SIZE, direct);
+		ring.getSegments(-PERIOD, PERIOD, segments);
+		return linear[0] + direct.get(0) + segments.length();
+	}
+}
@@ -0,0 +1,64 @@
+package com.mufin.android.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+/**
+ * measures the cost of {@link PolyphaseResampler} per second of audio, for the native rates of the devices.<br/>
+ * A desktop JVM tool, not part of the app, the cost on a phone is a few times higher. Run from the ams-demo directory:
+ * <pre>
+ * javac -d /tmp/tools -sourcepath src tools/com/mufin/android/common/PolyphaseResamplerBenchmark.java
+ * java -cp /tmp/tools com.mufin.android.common.PolyphaseResamplerBenchmark
+ * </pre>
+ * Each conversion processes 60 s of noise in buffers of 100 ms, after the same amount as warm-up.
+ */
+public class PolyphaseResamplerBenchmark {
+
+	private static final int DURATION = 60; // s
+	private static final int BUFFER_DURATION = 100; // ms
+	private static final int[][] CONVERSIONS = { { 48000, 16000 }, { 44100, 16000 }, { 16000, 8000 } };
+
+	public static void main(String[] args) {
+		final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		final long thread = Thread.currentThread().getId();
+		// the first calls of the clock and the counter allocate
+		System.nanoTime();
+		threads.getThreadAllocatedBytes(thread);
+
+		for(int[] conversion : CONVERSIONS) {
+			final int inputRate = conversion[0];
+			final int outputRate = conversion[1];
+			final PolyphaseResampler resampler = new PolyphaseResampler(inputRate, outputRate, 1);
+
+			final short[] input = new short[inputRate * BUFFER_DURATION / 1000];
+			final Random random = new Random(1);
+			for(int i = 0; i < input.length; i++)
+				input[i] = (short)random.nextInt();
+			final short[] output = new short[resampler.getMaxOutputLength(input.length)];
+			final int buffers = DURATION * 1000 / BUFFER_DURATION;
+
+			// warm-up, so the JIT compiled the measured code
+			long checksum = convert(resampler, input, output, buffers);
+
+			final long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+			final long start = System.nanoTime();
+			checksum += convert(resampler, input, output, buffers);
+			final long elapsed = System.nanoTime() - start;
+			final long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+			System.out.println(inputRate + " -> " + outputRate + " (" + resampler.getTapsPerPhase() + " taps/phase): "
+					+ String.format("%.2f", elapsed / 1e6 / DURATION) + " ms per second of audio, "
+					+ allocated + " bytes allocated (checksum " + checksum + ")");
+		}
+	}
+
+	/**
+	 * @return the count of output samples
+	 */
+	private static long convert(PolyphaseResampler resampler, short[] input, short[] output, int buffers) {
+		long count = 0;
+		for(int i = 0; i < buffers; i++)
+			count += resampler.process(input, 0, input.length, output, 0);
+		return count;
+	}
+}